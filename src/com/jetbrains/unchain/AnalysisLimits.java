@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+/**
+ * Limits after which {@link Unchainer} stops the analysis and reports partial results. A value of 0 means no limit.
+ *
+ * @author yole
+ */
+public class AnalysisLimits {
+  private int myMaxBadDependencies;
+  private long myTimeBudgetMillis;
+  private int myMaxNodes;
+  private int myMaxDepth;
+
+  public int getMaxBadDependencies() {
+    return myMaxBadDependencies;
+  }
+
+  /**
+   * Stops the analysis after the given number of distinct bad dependencies has been found. Use 1 to only check
+   * whether the class can be moved at all.
+   */
+  public void setMaxBadDependencies(int maxBadDependencies) {
+    myMaxBadDependencies = maxBadDependencies;
+  }
+
+  public long getTimeBudgetMillis() {
+    return myTimeBudgetMillis;
+  }
+
+  public void setTimeBudgetMillis(long timeBudgetMillis) {
+    myTimeBudgetMillis = timeBudgetMillis;
+  }
+
+  public int getMaxNodes() {
+    return myMaxNodes;
+  }
+
+  /**
+   * Stops the analysis after the given number of members has been analyzed.
+   */
+  public void setMaxNodes(int maxNodes) {
+    myMaxNodes = maxNodes;
+  }
+
+  public int getMaxDepth() {
+    return myMaxDepth;
+  }
+
+  /**
+   * Doesn't follow dependencies which would make a call chain longer than the given number of members.
+   */
+  public void setMaxDepth(int maxDepth) {
+    myMaxDepth = maxDepth;
+  }
+}
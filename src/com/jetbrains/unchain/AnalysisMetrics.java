@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timers collected by a single {@link Unchainer} run. The counters are updated by the concurrent workers
+ * of a parallel run, so they are atomic.
+ *
+ * @author yole
+ */
+public class AnalysisMetrics {
+  private final AtomicLong myReferencesVisited = new AtomicLong();
+  private final AtomicLong myGraphHits = new AtomicLong();
+  private final AtomicLong myIndexHits = new AtomicLong();
+  private final AtomicLong myResolvedMembers = new AtomicLong();
+  private final AtomicLong myResolvedReferences = new AtomicLong();
+  private final AtomicLong myResolveNanos = new AtomicLong();
+  private final AtomicLong myModuleLookups = new AtomicLong();
+  private final AtomicLong myModuleLookupMisses = new AtomicLong();
+  private final AtomicLong myDuplicateEnqueues = new AtomicLong();
+  private int myQueueHighWaterMark;
+  private int myVisitedCount;
+  private final Map<String, Long> myPhaseMillis = new LinkedHashMap<String, Long>();
+
+  /**
+   * Called for every reference processed by the traversal.
+   */
+  public void referenceVisited() {
+    myReferencesVisited.incrementAndGet();
+  }
+
+  public void graphHit() {
+    myGraphHits.incrementAndGet();
+  }
+
+  public void indexHit() {
+    myIndexHits.incrementAndGet();
+  }
+
+  /**
+   * Called when the references from a member have been resolved by {@link DependencyCollector}.
+   */
+  public void membersResolved(int referenceCount, long nanos) {
+    myResolvedMembers.incrementAndGet();
+    myResolvedReferences.addAndGet(referenceCount);
+    myResolveNanos.addAndGet(nanos);
+  }
+
+  public void moduleLookup(boolean cached) {
+    myModuleLookups.incrementAndGet();
+    if (!cached) {
+      myModuleLookupMisses.incrementAndGet();
+    }
+  }
+
+  public void duplicateEnqueueSkipped() {
+    myDuplicateEnqueues.incrementAndGet();
+  }
+
+  public synchronized void updateQueueSize(int size) {
+    if (size > myQueueHighWaterMark) {
+      myQueueHighWaterMark = size;
+    }
+  }
+
+  public synchronized void setVisitedCount(int visitedCount) {
+    myVisitedCount = visitedCount;
+  }
+
+  public synchronized void addPhaseTime(String phase, long millis) {
+    Long time = myPhaseMillis.get(phase);
+    myPhaseMillis.put(phase, time != null ? time + millis : millis);
+  }
+
+  public long getReferencesVisited() {
+    return myReferencesVisited.get();
+  }
+
+  public long getGraphHits() {
+    return myGraphHits.get();
+  }
+
+  public long getIndexHits() {
+    return myIndexHits.get();
+  }
+
+  public long getResolvedMembers() {
+    return myResolvedMembers.get();
+  }
+
+  public long getResolvedReferences() {
+    return myResolvedReferences.get();
+  }
+
+  public long getResolveMillis() {
+    return myResolveNanos.get() / 1000000;
+  }
+
+  public long getModuleLookups() {
+    return myModuleLookups.get();
+  }
+
+  public long getModuleLookupMisses() {
+    return myModuleLookupMisses.get();
+  }
+
+  public long getDuplicateEnqueues() {
+    return myDuplicateEnqueues.get();
+  }
+
+  public synchronized int getQueueHighWaterMark() {
+    return myQueueHighWaterMark;
+  }
+
+  public synchronized int getVisitedCount() {
+    return myVisitedCount;
+  }
+
+  public synchronized Map<String, Long> getPhaseMillis() {
+    return new LinkedHashMap<String, Long>(myPhaseMillis);
+  }
+
+  /**
+   * Returns the most important metrics in a form short enough for a status line.
+   */
+  public String getShortSummary() {
+    Long traversal = getPhaseMillis().get("traversal");
+    return getVisitedCount() + " members, " + getReferencesVisited() + " references, resolve " + getResolveMillis() +
+           " ms" + (traversal != null ? ", traversal " + traversal + " ms" : "");
+  }
+
+  /**
+   * Returns a one-line summary of all metrics.
+   */
+  public String getSummary() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(getVisitedCount()).append(" members visited, ");
+    builder.append(getReferencesVisited()).append(" references; ");
+    builder.append("resolved ").append(getResolvedMembers()).append(" members (").append(getResolvedReferences())
+      .append(" references) in ").append(getResolveMillis()).append(" ms, ");
+    builder.append(getGraphHits()).append(" graph hits, ").append(getIndexHits()).append(" index hits; ");
+    builder.append(getModuleLookups()).append(" module lookups (").append(getModuleLookupMisses()).append(" uncached); ");
+    builder.append("queue peak ").append(getQueueHighWaterMark()).append(", ");
+    builder.append(getDuplicateEnqueues()).append(" duplicates skipped");
+    for (Map.Entry<String, Long> entry : getPhaseMillis().entrySet()) {
+      builder.append("; ").append(entry.getKey()).append(" ").append(entry.getValue()).append(" ms");
+    }
+    return builder.toString();
+  }
+}
@@ -16,23 +16,47 @@
 
 package com.jetbrains.unchain;
 
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.pom.Navigatable;
-import com.intellij.psi.PsiElement;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiTreeUtil;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
+ * A bad dependency found by the analysis. The item doesn't reference any PSI: the usage is stored as a file and offset
+ * (or as the qname of the declaration it was found in) and is resolved only when the user navigates to it, so that
+ * the results shown in the tool window don't keep the ASTs of the offending files in memory.
+ *
  * @author yole
  */
 public class BadDependencyItem {
   private final String myText;
-  private final PsiElement myPsiElement;
   private final List<String> myCallChain;
+  private final String myOwnerQName;
+  private final VirtualFile myFile;
+  private final int myOffset;
+  private final int[] myCallChainOffsets;
+  private final List<String> myRoots;
+
+  public BadDependencyItem(String text, List<String> callChain, int[] callChainOffsets, String ownerQName,
+                           VirtualFile file, int offset) {
+    this(text, callChain, callChainOffsets, ownerQName, file, offset, Collections.<String>emptyList());
+  }
 
-  public BadDependencyItem(String text, PsiElement element, List<String> callChain) {
+  private BadDependencyItem(String text, List<String> callChain, int[] callChainOffsets, String ownerQName,
+                            VirtualFile file, int offset, List<String> roots) {
     myText = text;
-    myPsiElement = element;
     myCallChain = callChain;
+    myCallChainOffsets = callChainOffsets;
+    myOwnerQName = ownerQName;
+    myFile = file;
+    myOffset = offset;
+    myRoots = roots;
   }
 
   @Override
@@ -40,15 +64,57 @@ public class BadDependencyItem {
     return myText;
   }
 
-  public PsiElement getPsiElement() {
-    return myPsiElement;
+  /**
+   * Finds the element referencing the bad dependency. Must be called in a read action.
+   */
+  public PsiElement getPsiElement(Project project) {
+    if (myOffset < 0 || myFile == null) {
+      return PsiQNames.findElementByQName(project, myOwnerQName, GlobalSearchScope.allScope(project));
+    }
+    if (!myFile.isValid()) {
+      return null;
+    }
+    PsiFile psiFile = PsiManager.getInstance(project).findFile(myFile);
+    if (psiFile == null) {
+      return null;
+    }
+    PsiElement leaf = psiFile.findElementAt(myOffset);
+    PsiJavaCodeReferenceElement reference = PsiTreeUtil.getParentOfType(leaf, PsiJavaCodeReferenceElement.class);
+    return reference != null ? reference : leaf;
   }
 
-  public Navigatable getNavigatable() {
-    return myPsiElement instanceof Navigatable ? (Navigatable) myPsiElement : null;
+  public Navigatable getNavigatable(Project project) {
+    if (myOffset >= 0 && myFile != null && myFile.isValid()) {
+      return new OpenFileDescriptor(project, myFile, myOffset);
+    }
+    PsiElement element = getPsiElement(project);
+    return element instanceof Navigatable ? (Navigatable) element : null;
   }
 
   public List<String> getCallChain() {
     return myCallChain;
   }
+
+  /**
+   * Returns the root classes from which the bad dependency can be reached, if more than one class was analyzed.
+   */
+  public List<String> getRoots() {
+    return myRoots;
+  }
+
+  /**
+   * Returns a copy of the item with the given roots. The items are shared with the listeners and the tool window, so
+   * they are never changed after they have been created.
+   */
+  BadDependencyItem withRoots(List<String> roots) {
+    return new BadDependencyItem(myText, myCallChain, myCallChainOffsets, myOwnerQName, myFile, myOffset, roots);
+  }
+
+  /**
+   * Returns the offset of the reference from the call chain element with the given index to the next element, or -1
+   * if the offset is not known. For the last element, this is the offset of the usage of the bad dependency.
+   */
+  public int getCallChainOffset(int index) {
+    return index == myCallChainOffsets.length - 1 ? myOffset : myCallChainOffsets[index];
+  }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.psi.PsiElement;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable call chain stored as a parent-pointer list, so that chains of items enqueued from the same
+ * predecessor share their common prefix. QNames are only built when the chain is shown. Every node also records the
+ * offset of the reference from the previous element which led to its element.
+ *
+ * @author yole
+ */
+public class CallChain {
+  private final PsiElement myElement;
+  private final CallChain myParent;
+  private final int myLength;
+  private final int myReferenceOffset;
+
+  public CallChain(PsiElement element, CallChain parent) {
+    this(element, parent, -1);
+  }
+
+  /**
+   * @param referenceOffset the offset of the reference to the element in the file of the parent element, or -1 if it
+   *                        is not known
+   */
+  public CallChain(PsiElement element, CallChain parent, int referenceOffset) {
+    myElement = element;
+    myParent = parent;
+    myLength = parent != null ? parent.myLength + 1 : 1;
+    myReferenceOffset = referenceOffset;
+  }
+
+  public PsiElement getElement() {
+    return myElement;
+  }
+
+  public CallChain getParent() {
+    return myParent;
+  }
+
+  public int getLength() {
+    return myLength;
+  }
+
+  public int getReferenceOffset() {
+    return myReferenceOffset;
+  }
+
+  /**
+   * Returns the offsets of the references between the elements of the chain: the i-th offset is the offset of the
+   * reference to the (i+1)-th element in the file of the i-th element. The last offset is -1.
+   */
+  public int[] toReferenceOffsets() {
+    int[] result = new int[myLength];
+    result[myLength - 1] = -1;
+    CallChain chain = this;
+    for (int i = myLength - 2; i >= 0; i--) {
+      result[i] = chain.myReferenceOffset;
+      chain = chain.myParent;
+    }
+    return result;
+  }
+
+  public List<String> toQNames() {
+    String[] result = new String[myLength];
+    CallChain chain = this;
+    for (int i = myLength - 1; i >= 0; i--) {
+      result[i] = PsiQNames.getQName(chain.myElement);
+      chain = chain.myParent;
+    }
+    return Arrays.asList(result);
+  }
+}
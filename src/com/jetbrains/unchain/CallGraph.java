@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongHashSet;
+
+import java.util.*;
+
+/**
+ * Predecessor graph of the members visited by an analysis run, stored as int edge lists over {@link MemberTable} ids.
+ * The run records every reference between source members and every usage of a bad dependency, and keeps only a
+ * single call chain per bad dependency; other chains leading to a bad dependency are enumerated from the graph on
+ * demand, shortest first. The root classes of the analysis have the ids 0..n-1, and a chain may start at any of
+ * them. Once {@link #freeze} has been called, the graph doesn't reference any PSI.
+ *
+ * @author yole
+ */
+public class CallGraph {
+  private static final int MAX_EXPANDED_PATHS = 100000;
+
+  private final TIntArrayList myEdgeSources = new TIntArrayList();
+  private final TIntArrayList myEdgeOffsets = new TIntArrayList();
+  private final TIntArrayList myNextEdges = new TIntArrayList();
+  private final TIntArrayList myFirstEdges = new TIntArrayList();
+  private final TLongHashSet myEdges = new TLongHashSet();
+  private final Map<String, BadUsages> myBadUsages = new HashMap<String, BadUsages>();
+  private String[] myQNames;
+  private VirtualFile[] myFiles;
+  private int[] myDistances;
+  private BitSet[] myReachingRoots;
+  private int myRootCount;
+
+  private static class BadUsages {
+    private final TIntArrayList mySources = new TIntArrayList();
+    private final TIntArrayList myOffsets = new TIntArrayList();
+    private final List<String> myOwnerQNames = new ArrayList<String>();
+    private final TIntHashSet mySourceSet = new TIntHashSet();
+  }
+
+  private static class PathNode implements Comparable<PathNode> {
+    private final int myId;
+    private final PathNode myNext;
+    private final int myOffsetToNext;
+    private final int myUsageIndex;
+    private final int myLength;
+    private final int myEstimate;
+
+    private PathNode(int id, PathNode next, int offsetToNext, int usageIndex, int distanceFromRoot) {
+      myId = id;
+      myNext = next;
+      myOffsetToNext = offsetToNext;
+      myUsageIndex = usageIndex;
+      myLength = next != null ? next.myLength + 1 : 1;
+      myEstimate = myLength + distanceFromRoot;
+    }
+
+    private boolean contains(int id) {
+      for (PathNode node = this; node != null; node = node.myNext) {
+        if (node.myId == id) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public int compareTo(PathNode o) {
+      return myEstimate - o.myEstimate;
+    }
+  }
+
+  /**
+   * Records a reference from the member with id {@code source} to the member with id {@code target}.
+   */
+  public void addEdge(int source, int target, int offset) {
+    if (source == target || !myEdges.add(((long) source << 32) | target)) {
+      return;
+    }
+    while (myFirstEdges.size() <= target) {
+      myFirstEdges.add(-1);
+    }
+    myEdgeSources.add(source);
+    myEdgeOffsets.add(offset);
+    myNextEdges.add(myFirstEdges.get(target));
+    myFirstEdges.set(target, myEdgeSources.size() - 1);
+  }
+
+  /**
+   * Records a usage of a bad dependency in the member with id {@code source}. Only the first usage in every member is
+   * kept.
+   */
+  public void addBadUsage(String dependencyQName, int source, int offset, String ownerQName) {
+    BadUsages usages = myBadUsages.get(dependencyQName);
+    if (usages == null) {
+      usages = new BadUsages();
+      myBadUsages.put(dependencyQName, usages);
+    }
+    if (usages.mySourceSet.add(source)) {
+      usages.mySources.add(source);
+      usages.myOffsets.add(offset);
+      usages.myOwnerQNames.add(ownerQName);
+    }
+  }
+
+  /**
+   * Builds the qnames and files of the members, so that the chains can be created after the PSI has changed or been
+   * released, and the distances from the roots, which don't change once the run has finished. Must be called in a read
+   * action.
+   */
+  void freeze(MemberTable members, int rootCount) {
+    myRootCount = rootCount;
+    myQNames = new String[members.size()];
+    myFiles = new VirtualFile[members.size()];
+    for (int id = 0; id < members.size(); id++) {
+      if (members.isVisited(id)) {
+        myQNames[id] = PsiQNames.getQName(members.getElement(id));
+        myFiles[id] = members.getElement(id).getContainingFile().getVirtualFile();
+      }
+    }
+    myDistances = computeDistancesFromRoot();
+  }
+
+  boolean isFrozen() {
+    return myQNames != null;
+  }
+
+  /**
+   * Returns up to {@code maxCount} distinct call chains from the root classes to the usages of the given bad
+   * dependency, shortest first. Chains never contain the same member twice.
+   */
+  public List<BadDependencyItem> getCallChains(BadDependencyItem item, int maxCount) {
+    List<BadDependencyItem> result = new ArrayList<BadDependencyItem>();
+    BadUsages usages = myBadUsages.get(item.toString());
+    if (usages == null || myQNames == null) {
+      return result;
+    }
+    int[] distances = myDistances;
+    PriorityQueue<PathNode> queue = new PriorityQueue<PathNode>();
+    for (int i = 0; i < usages.mySources.size(); i++) {
+      int source = usages.mySources.get(i);
+      if (distances[source] >= 0) {
+        queue.add(new PathNode(source, null, -1, i, distances[source]));
+      }
+    }
+    int expanded = 0;
+    while (!queue.isEmpty() && result.size() < maxCount && expanded++ < MAX_EXPANDED_PATHS) {
+      PathNode path = queue.poll();
+      if (path.myId < myRootCount) {
+        result.add(createItem(item, path, usages));
+        continue;
+      }
+      for (int edge = getFirstEdge(path.myId); edge >= 0; edge = myNextEdges.get(edge)) {
+        int source = myEdgeSources.get(edge);
+        if (distances[source] >= 0 && !path.contains(source)) {
+          queue.add(new PathNode(source, path, myEdgeOffsets.get(edge), path.myUsageIndex, distances[source]));
+        }
+      }
+    }
+    return result;
+  }
+
+  private BadDependencyItem createItem(BadDependencyItem item, PathNode path, BadUsages usages) {
+    int usageIndex = path.myUsageIndex;
+    List<String> qNames = new ArrayList<String>(path.myLength);
+    int[] offsets = new int[path.myLength];
+    int last = 0;
+    for (PathNode node = path; node != null; node = node.myNext) {
+      offsets[qNames.size()] = node.myOffsetToNext;
+      qNames.add(myQNames[node.myId]);
+      last = node.myId;
+    }
+    BadDependencyItem result = new BadDependencyItem(item.toString(), qNames, offsets, usages.myOwnerQNames.get(usageIndex),
+                                                     myFiles[last], usages.myOffsets.get(usageIndex));
+    return result.withRoots(item.getRoots());
+  }
+
+  /**
+   * Returns the qnames of the root classes from which the bad dependency with the given qname can be reached, in the
+   * order in which the roots were passed to the analysis.
+   */
+  public List<String> getReachingRoots(String dependencyQName) {
+    List<String> result = new ArrayList<String>();
+    BadUsages usages = myBadUsages.get(dependencyQName);
+    if (usages == null || myQNames == null) {
+      return result;
+    }
+    if (myReachingRoots == null) {
+      myReachingRoots = computeReachingRoots();
+    }
+    BitSet roots = new BitSet();
+    for (int i = 0; i < usages.mySources.size(); i++) {
+      BitSet sourceRoots = myReachingRoots[usages.mySources.get(i)];
+      if (sourceRoots != null) {
+        roots.or(sourceRoots);
+      }
+    }
+    for (int id = roots.nextSetBit(0); id >= 0; id = roots.nextSetBit(id + 1)) {
+      result.add(myQNames[id]);
+    }
+    return result;
+  }
+
+  /**
+   * Propagates the set of reaching roots forward from every root until nothing changes, so that the roots of all bad
+   * dependencies are known after a single pass over the graph.
+   */
+  private BitSet[] computeReachingRoots() {
+    int size = myQNames.length;
+    TIntArrayList[] successors = computeSuccessors();
+    BitSet[] reachingRoots = new BitSet[size];
+    boolean[] queued = new boolean[size];
+    TIntArrayList queue = new TIntArrayList();
+    for (int root = 0; root < myRootCount && root < size; root++) {
+      reachingRoots[root] = new BitSet();
+      reachingRoots[root].set(root);
+      queued[root] = true;
+      queue.add(root);
+    }
+    for (int i = 0; i < queue.size(); i++) {
+      int node = queue.get(i);
+      queued[node] = false;
+      if (successors[node] == null) {
+        continue;
+      }
+      for (int j = 0; j < successors[node].size(); j++) {
+        int successor = successors[node].get(j);
+        if (successor >= size || myQNames[successor] == null) {
+          continue;
+        }
+        if (reachingRoots[successor] == null) {
+          reachingRoots[successor] = new BitSet();
+        }
+        int before = reachingRoots[successor].cardinality();
+        reachingRoots[successor].or(reachingRoots[node]);
+        if (reachingRoots[successor].cardinality() != before && !queued[successor]) {
+          queued[successor] = true;
+          queue.add(successor);
+        }
+      }
+    }
+    return reachingRoots;
+  }
+
+  private int getFirstEdge(int target) {
+    return target < myFirstEdges.size() ? myFirstEdges.get(target) : -1;
+  }
+
+  /**
+   * Computes the length of the shortest path from the nearest root class to every visited member, which is used as the
+   * exact remaining distance by the best-first search over the predecessors.
+   */
+  private int[] computeDistancesFromRoot() {
+    int size = myQNames.length;
+    TIntArrayList[] successors = computeSuccessors();
+    int[] distances = new int[size];
+    Arrays.fill(distances, -1);
+    TIntArrayList queue = new TIntArrayList();
+    for (int root = 0; root < myRootCount && root < size; root++) {
+      distances[root] = 0;
+      queue.add(root);
+    }
+    for (int i = 0; i < queue.size(); i++) {
+      int node = queue.get(i);
+      if (successors[node] == null) {
+        continue;
+      }
+      for (int j = 0; j < successors[node].size(); j++) {
+        int successor = successors[node].get(j);
+        if (successor < size && distances[successor] < 0 && myQNames[successor] != null) {
+          distances[successor] = distances[node] + 1;
+          queue.add(successor);
+        }
+      }
+    }
+    return distances;
+  }
+
+  private TIntArrayList[] computeSuccessors() {
+    TIntArrayList[] successors = new TIntArrayList[myQNames.length];
+    for (int target = 0; target < myFirstEdges.size(); target++) {
+      for (int edge = myFirstEdges.get(target); edge >= 0; edge = myNextEdges.get(edge)) {
+        int source = myEdgeSources.get(edge);
+        if (successors[source] == null) {
+          successors[source] = new TIntArrayList();
+        }
+        successors[source].add(target);
+      }
+    }
+    return successors;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiClassOwner;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A set of class patterns compiled into hash sets, so that matching a class doesn't depend on the number of patterns.
+ * Supported patterns are qualified class names (which also match the inner classes of the class), {@code pkg.*} for
+ * the classes of a package, {@code pkg.**} for the classes of a package and its subpackages, and {@code module:name}
+ * for the classes of a module.
+ *
+ * @author yole
+ */
+class ClassPatternSet {
+  private static final String MODULE_PREFIX = "module:";
+
+  private final Set<String> myClassNames = new HashSet<String>();
+  private final Set<String> myPackages = new HashSet<String>();
+  private final Set<String> myPackageTrees = new HashSet<String>();
+  private final Set<String> myModules = new HashSet<String>();
+
+  ClassPatternSet(Collection<String> patterns) {
+    for (String pattern : patterns) {
+      pattern = pattern.trim();
+      if (pattern.startsWith(MODULE_PREFIX)) {
+        myModules.add(pattern.substring(MODULE_PREFIX.length()).trim());
+      }
+      else if (pattern.endsWith(".**")) {
+        myPackageTrees.add(pattern.substring(0, pattern.length() - 3));
+      }
+      else if (pattern.endsWith(".*")) {
+        myPackages.add(pattern.substring(0, pattern.length() - 2));
+      }
+      else if (pattern.length() > 0) {
+        myClassNames.add(pattern);
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return myClassNames.isEmpty() && !hasLocationPatterns();
+  }
+
+  private boolean hasLocationPatterns() {
+    return !myPackages.isEmpty() || !myPackageTrees.isEmpty() || !myModules.isEmpty();
+  }
+
+  public boolean containsClassName(String qualifiedName) {
+    return qualifiedName != null && myClassNames.contains(qualifiedName);
+  }
+
+  /**
+   * Checks whether the package or module of the file containing the element is matched by a pattern.
+   */
+  public boolean matchesLocation(PsiElement element) {
+    if (!hasLocationPatterns()) {
+      return false;
+    }
+    PsiFile file = element.getContainingFile();
+    if (file instanceof PsiClassOwner && matchesPackage(((PsiClassOwner) file).getPackageName())) {
+      return true;
+    }
+    if (!myModules.isEmpty()) {
+      VirtualFile vFile = file != null ? file.getVirtualFile() : null;
+      Module module = vFile != null ? ProjectFileIndex.SERVICE.getInstance(element.getProject()).getModuleForFile(vFile) : null;
+      return module != null && myModules.contains(module.getName());
+    }
+    return false;
+  }
+
+  private boolean matchesPackage(String packageName) {
+    if (myPackages.contains(packageName)) {
+      return true;
+    }
+    if (myPackageTrees.isEmpty()) {
+      return false;
+    }
+    String prefix = packageName;
+    while (true) {
+      if (myPackageTrees.contains(prefix)) {
+        return true;
+      }
+      int dot = prefix.lastIndexOf('.');
+      if (dot < 0) {
+        return false;
+      }
+      prefix = prefix.substring(0, dot);
+    }
+  }
+}
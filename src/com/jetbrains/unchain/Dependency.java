@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiJavaCodeReferenceElement;
+import com.intellij.psi.util.PsiTreeUtil;
+
+/**
+ * A resolved reference from an analyzed member. When loaded from {@link ReferenceIndex}, only the offset of the
+ * referencing element is known, and the element itself is looked up on demand. References collected from stubs
+ * have no offset and use the declaration they were found in as the referencing element.
+ *
+ * @author yole
+ */
+public class Dependency {
+  private final PsiElement myTarget;
+  private final PsiElement myOwner;
+  private final int myOffset;
+  private PsiElement myReferencingElement;
+
+  public Dependency(PsiElement referencingElement, PsiElement target) {
+    myReferencingElement = referencingElement;
+    myTarget = target;
+    myOwner = referencingElement;
+    myOffset = referencingElement.getTextRange().getStartOffset();
+  }
+
+  /**
+   * @param owner  the analyzed element containing the reference
+   * @param offset the offset of the referencing element in the file, or -1 if the reference belongs to the declaration
+   *               of the owner itself
+   */
+  public Dependency(PsiElement owner, int offset, PsiElement target) {
+    myOwner = owner;
+    myOffset = offset;
+    myTarget = target;
+  }
+
+  public PsiElement getTarget() {
+    return myTarget;
+  }
+
+  public PsiElement getOwner() {
+    return myOwner;
+  }
+
+  public int getOffset() {
+    return myOffset;
+  }
+
+  public PsiElement getReferencingElement() {
+    if (myReferencingElement == null && myOffset < 0) {
+      myReferencingElement = myOwner;
+    }
+    if (myReferencingElement == null) {
+      PsiElement leaf = myOwner.getContainingFile().findElementAt(myOffset);
+      PsiJavaCodeReferenceElement reference = PsiTreeUtil.getParentOfType(leaf, PsiJavaCodeReferenceElement.class);
+      myReferencingElement = reference != null ? reference : leaf;
+    }
+    return myReferencingElement;
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.psi.*;
+import com.intellij.psi.impl.source.PsiClassReferenceType;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.javadoc.PsiDocComment;
+import com.intellij.util.PairProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves the references to classes and members from the code of a class or member. Declarations without any code
+ * (interfaces, abstract methods, fields without initializers) are read from stubs if their file's AST isn't loaded,
+ * so that the AST is only built for files whose method bodies or initializers are actually reached. Javadoc
+ * references are not compile-time dependencies and aren't stored in stubs, so they are skipped on both paths.
+ *
+ * @author yole
+ */
+public class DependencyCollector {
+  private DependencyCollector() {
+  }
+
+  public static List<Dependency> collectDependencies(PsiElement element) {
+    if (element instanceof PsiMember && isAstNotLoaded(element) && !hasCode((PsiMember) element)) {
+      List<Dependency> result = new ArrayList<Dependency>();
+      collectStubDependencies((PsiMember) element, result);
+      return result;
+    }
+
+    final List<Dependency> result = new ArrayList<Dependency>();
+    processDependencies(element, new PairProcessor<PsiElement, PsiElement>() {
+      @Override
+      public boolean process(PsiElement referencingElement, PsiElement dependency) {
+        result.add(new Dependency(referencingElement, dependency));
+        return true;
+      }
+    });
+    return result;
+  }
+
+  private static void processDependencies(PsiElement element, final PairProcessor<PsiElement, PsiElement> processor) {
+    element.accept(new JavaRecursiveElementVisitor() {
+      @Override
+      public void visitElement(PsiElement element) {
+        super.visitElement(element);
+        for (PsiReference ref: element.getReferences()) {
+          processReference(element, ref);
+        }
+      }
+
+      private void processReference(PsiElement element, PsiReference ref) {
+        PsiElement result = ref.resolve();
+        if ((result instanceof PsiClass || result instanceof PsiMember) && !(result instanceof PsiTypeParameter)) {
+          processor.process(element, result);
+        }
+      }
+
+      @Override
+      public void visitDocComment(PsiDocComment comment) {
+      }
+
+      @Override
+      public void visitReferenceExpression(PsiReferenceExpression expression) {
+        PsiExpression qualifierExpression = expression.getQualifierExpression();
+        if (qualifierExpression instanceof PsiJavaCodeReferenceElement && qualifierExpression.getReference().resolve() instanceof PsiClass) {
+          processReference(expression, expression);
+        }
+        else {
+          visitElement(expression);
+        }
+      }
+    });
+  }
+
+  private static boolean isAstNotLoaded(PsiElement element) {
+    PsiFile file = element.getContainingFile();
+    return file instanceof PsiFileImpl && ((PsiFileImpl) file).getTreeElement() == null;
+  }
+
+  /**
+   * Checks whether the member has anything which is not stored in stubs: method bodies, initializers, enum constant
+   * arguments, annotation attributes or anonymous classes.
+   */
+  private static boolean hasCode(PsiMember member) {
+    PsiModifierList modifierList = member.getModifierList();
+    if (modifierList != null) {
+      for (PsiAnnotation annotation : modifierList.getAnnotations()) {
+        if (annotation.getParameterList().getAttributes().length > 0) {
+          return true;
+        }
+      }
+    }
+    if (member instanceof PsiClass) {
+      PsiClass psiClass = (PsiClass) member;
+      if (psiClass instanceof PsiAnonymousClass || psiClass.getInitializers().length > 0) {
+        return true;
+      }
+      for (PsiMethod method : psiClass.getMethods()) {
+        if (hasCode(method)) {
+          return true;
+        }
+      }
+      for (PsiField field : psiClass.getFields()) {
+        if (hasCode(field)) {
+          return true;
+        }
+      }
+      for (PsiClass innerClass : psiClass.getInnerClasses()) {
+        if (hasCode(innerClass)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (member instanceof PsiAnnotationMethod) {
+      return true;
+    }
+    if (member instanceof PsiMethod) {
+      PsiMethod method = (PsiMethod) member;
+      for (PsiParameter parameter : method.getParameterList().getParameters()) {
+        if (hasAnnotations(parameter)) {
+          return true;
+        }
+      }
+      // interface methods are implicitly abstract unless they are default or static methods, which have bodies
+      return !method.hasModifierProperty(PsiModifier.ABSTRACT) && !method.hasModifierProperty(PsiModifier.NATIVE);
+    }
+    if (member instanceof PsiEnumConstant) {
+      return true;
+    }
+    if (member instanceof PsiField) {
+      return ((PsiField) member).hasInitializer();
+    }
+    return true;
+  }
+
+  private static boolean hasAnnotations(PsiModifierListOwner owner) {
+    PsiModifierList modifierList = owner.getModifierList();
+    return modifierList != null && modifierList.getAnnotations().length > 0;
+  }
+
+  private static void collectStubDependencies(PsiMember member, List<Dependency> result) {
+    PsiModifierList modifierList = member.getModifierList();
+    if (modifierList != null) {
+      for (PsiAnnotation annotation : modifierList.getAnnotations()) {
+        addReferenceDependencies(member, annotation.getNameReferenceElement(), result);
+      }
+    }
+    if (member instanceof PsiTypeParameterListOwner) {
+      for (PsiTypeParameter typeParameter : ((PsiTypeParameterListOwner) member).getTypeParameters()) {
+        addTypeDependencies(member, typeParameter.getExtendsList().getReferencedTypes(), result);
+      }
+    }
+    if (member instanceof PsiClass) {
+      PsiClass psiClass = (PsiClass) member;
+      addTypeDependencies(member, getReferencedTypes(psiClass.getExtendsList()), result);
+      addTypeDependencies(member, getReferencedTypes(psiClass.getImplementsList()), result);
+      for (PsiField field : psiClass.getFields()) {
+        collectStubDependencies(field, result);
+      }
+      for (PsiMethod method : psiClass.getMethods()) {
+        collectStubDependencies(method, result);
+      }
+      for (PsiClass innerClass : psiClass.getInnerClasses()) {
+        collectStubDependencies(innerClass, result);
+      }
+    }
+    else if (member instanceof PsiMethod) {
+      PsiMethod method = (PsiMethod) member;
+      addTypeDependencies(member, method.getReturnType(), result);
+      for (PsiParameter parameter : method.getParameterList().getParameters()) {
+        addTypeDependencies(member, parameter.getType(), result);
+      }
+      addTypeDependencies(member, method.getThrowsList().getReferencedTypes(), result);
+    }
+    else if (member instanceof PsiField) {
+      addTypeDependencies(member, ((PsiField) member).getType(), result);
+    }
+  }
+
+  private static PsiClassType[] getReferencedTypes(PsiReferenceList referenceList) {
+    return referenceList != null ? referenceList.getReferencedTypes() : PsiClassType.EMPTY_ARRAY;
+  }
+
+  private static void addTypeDependencies(PsiMember member, PsiType[] types, List<Dependency> result) {
+    for (PsiType type : types) {
+      addTypeDependencies(member, type, result);
+    }
+  }
+
+  private static void addTypeDependencies(final PsiMember member, PsiType type, final List<Dependency> result) {
+    if (type == null) {
+      return;
+    }
+    type.accept(new PsiTypeVisitor<Object>() {
+      @Override
+      public Object visitClassType(PsiClassType classType) {
+        if (classType instanceof PsiClassReferenceType) {
+          addReferenceDependencies(member, ((PsiClassReferenceType) classType).getReference(), result);
+        }
+        else {
+          addDependency(member, classType.resolve(), result);
+        }
+        for (PsiType parameter : classType.getParameters()) {
+          parameter.accept(this);
+        }
+        return null;
+      }
+
+      @Override
+      public Object visitArrayType(PsiArrayType arrayType) {
+        return arrayType.getComponentType().accept(this);
+      }
+
+      @Override
+      public Object visitWildcardType(PsiWildcardType wildcardType) {
+        PsiType bound = wildcardType.getBound();
+        return bound != null ? bound.accept(this) : null;
+      }
+    });
+  }
+
+  /**
+   * Adds the class referenced by the type or annotation reference and the classes referenced by its qualifiers, such
+   * as Map in Map.Entry, as the AST path does. The reference is built from the stub text, so this doesn't load the AST.
+   */
+  private static void addReferenceDependencies(PsiMember member, PsiJavaCodeReferenceElement reference,
+                                               List<Dependency> result) {
+    while (reference != null) {
+      PsiElement target = reference.resolve();
+      if (target instanceof PsiClass) {
+        addDependency(member, (PsiClass) target, result);
+      }
+      PsiElement qualifier = reference.getQualifier();
+      reference = qualifier instanceof PsiJavaCodeReferenceElement ? (PsiJavaCodeReferenceElement) qualifier : null;
+    }
+  }
+
+  private static void addDependency(PsiMember member, PsiClass target, List<Dependency> result) {
+    if (target != null && !(target instanceof PsiTypeParameter)) {
+      result.add(new Dependency(member, -1, target));
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+/**
+ * Receives the dependency graph while it is being traversed by {@link Unchainer}, for example to export it.
+ * All methods are called on the analysis thread inside a read action.
+ *
+ * @author yole
+ */
+public interface DependencyGraphListener {
+  /**
+   * Called when a member is analyzed.
+   *
+   * @param parentQName the previous element of the member's call chain, or null for the analyzed class
+   */
+  void memberVisited(String qName, String moduleName, String parentQName);
+
+  /**
+   * Called for every reference from an analyzed member to a member of the source module or to a bad dependency.
+   *
+   * @param offset the offset of the reference in the file of the source member, or -1 if it is not known
+   */
+  void dependencyFound(String sourceQName, String targetQName, String targetModuleName, int offset, boolean bad);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.pom.Navigatable;
+
+/**
+ * A usage of a moved class or member in code which can't depend on the target module, so that it would no longer
+ * compile after the move. Like {@link BadDependencyItem}, the usage is stored as a file and offset.
+ *
+ * @author yole
+ */
+public class InboundUsage {
+  private final String myTargetQName;
+  private final String myUsageQName;
+  private final String myModuleName;
+  private final VirtualFile myFile;
+  private final int myOffset;
+
+  InboundUsage(String targetQName, String usageQName, String moduleName, VirtualFile file, int offset) {
+    myTargetQName = targetQName;
+    myUsageQName = usageQName;
+    myModuleName = moduleName;
+    myFile = file;
+    myOffset = offset;
+  }
+
+  /**
+   * @return the qname of the moved class or member
+   */
+  public String getTargetQName() {
+    return myTargetQName;
+  }
+
+  /**
+   * @return the qname of the member containing the usage, or the name of the file for usages outside of classes
+   */
+  public String getUsageQName() {
+    return myUsageQName;
+  }
+
+  public String getModuleName() {
+    return myModuleName;
+  }
+
+  public Navigatable getNavigatable(Project project) {
+    return myFile.isValid() ? new OpenFileDescriptor(project, myFile, myOffset) : null;
+  }
+
+  @Override
+  public String toString() {
+    return myUsageQName + " (" + myModuleName + ") -> " + myTargetQName;
+  }
+}
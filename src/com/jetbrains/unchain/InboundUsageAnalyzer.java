@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiSearchHelper;
+import com.intellij.psi.search.SearchRequestCollector;
+import com.intellij.psi.search.SearchSession;
+import com.intellij.psi.search.searches.ReferencesSearch;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the usages of the classes and members to move which would break after the move: usages in modules which
+ * don't depend on the target module, including the code staying in the source module. The searches for all elements
+ * are registered in a single {@link SearchRequestCollector} over one scope containing all such modules, so that the
+ * word index is queried once per name and every candidate file is loaded once, by the concurrent workers of the
+ * search helper, instead of running a separate search per element.
+ *
+ * @author yole
+ */
+public class InboundUsageAnalyzer {
+  private final Project myProject;
+  private final Module myTargetModule;
+  private final Map<PsiElement, String> myMovedElements = new LinkedHashMap<PsiElement, String>();
+  private final Set<PsiFile> myMovedFiles = new HashSet<PsiFile>();
+  private final ConcurrentMap<String, InboundUsage> myUsages = new ConcurrentHashMap<String, InboundUsage>();
+
+  /**
+   * Must be called in a read action.
+   *
+   * @param movedElements the classes and members to move; elements nested in other moved elements may be omitted
+   */
+  public InboundUsageAnalyzer(Module targetModule, Collection<? extends PsiElement> movedElements) {
+    myProject = targetModule.getProject();
+    myTargetModule = targetModule;
+    for (PsiElement element : movedElements) {
+      myMovedElements.put(element, PsiQNames.getQName(element));
+      if (element instanceof PsiClass && ((PsiClass)element).getContainingClass() == null) {
+        myMovedFiles.add(element.getContainingFile());
+      }
+    }
+  }
+
+  /**
+   * Returns the usages which would break, at most one for every pair of a using member and a moved element, sorted
+   * by the using member. Must be called without a read action.
+   */
+  public List<InboundUsage> run() {
+    final SearchRequestCollector collector = new SearchRequestCollector(new SearchSession());
+    boolean hasScope = ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        GlobalSearchScope scope = createScope();
+        if (scope == null) {
+          return false;
+        }
+        for (Map.Entry<PsiElement, String> entry : myMovedElements.entrySet()) {
+          ReferencesSearch.searchOptimized(entry.getKey(), scope, false, collector, new UsageCollector(entry.getValue()));
+        }
+        return true;
+      }
+    });
+    if (hasScope) {
+      PsiSearchHelper.SERVICE.getInstance(myProject).processRequests(collector, CommonProcessors.<PsiReference>alwaysTrue());
+    }
+
+    List<InboundUsage> result = new ArrayList<InboundUsage>(myUsages.values());
+    Collections.sort(result, new Comparator<InboundUsage>() {
+      @Override
+      public int compare(InboundUsage usage1, InboundUsage usage2) {
+        return usage1.toString().compareTo(usage2.toString());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Creates the union of the sources which can't see the classes in the target module, or returns null if every
+   * module can. The production sources of a module are checked against its production dependencies only, so a
+   * module which depends on the target module just for its tests contributes its production sources.
+   */
+  private GlobalSearchScope createScope() {
+    GlobalSearchScope result = null;
+    for (Module module : ModuleManager.getInstance(myProject).getModules()) {
+      if (module == myTargetModule) {
+        continue;
+      }
+      GlobalSearchScope moduleScope = null;
+      if (!ModuleClassifier.collectAllowedDependencies(module, true).contains(myTargetModule)) {
+        moduleScope = GlobalSearchScope.moduleScope(module);
+      }
+      else if (!ModuleClassifier.collectAllowedDependencies(module, false).contains(myTargetModule)) {
+        moduleScope = module.getModuleScope(false);
+      }
+      if (moduleScope != null) {
+        result = result != null ? result.uniteWith(moduleScope) : moduleScope;
+      }
+    }
+    return result;
+  }
+
+  private class UsageCollector implements Processor<PsiReference> {
+    private final String myTargetQName;
+
+    private UsageCollector(String targetQName) {
+      myTargetQName = targetQName;
+    }
+
+    @Override
+    public boolean process(PsiReference reference) {
+      PsiElement element = reference.getElement();
+      if (isInMovedElement(element)) {
+        return true;
+      }
+      PsiElement member = PsiTreeUtil.getParentOfType(element, PsiMethod.class, PsiField.class, PsiClass.class);
+      PsiFile file = element.getContainingFile();
+      if (file == null || file.getVirtualFile() == null) {
+        return true;
+      }
+      String usageQName = member != null ? PsiQNames.getQName(member) : file.getName();
+      Module module = ModuleUtil.findModuleForPsiElement(element);
+      InboundUsage usage = new InboundUsage(myTargetQName, usageQName, module != null ? module.getName() : "",
+                                            file.getVirtualFile(), element.getTextRange().getStartOffset());
+      myUsages.putIfAbsent(usageQName + "->" + myTargetQName, usage);
+      return true;
+    }
+
+    /**
+     * Checks whether the reference moves along with the elements, either because it is inside one of them or because
+     * it is outside of any class in the file of a moved top-level class, like an import statement.
+     */
+    private boolean isInMovedElement(PsiElement element) {
+      PsiMember member = PsiTreeUtil.getParentOfType(element, PsiMember.class);
+      if (member == null) {
+        return myMovedFiles.contains(element.getContainingFile());
+      }
+      while (member != null) {
+        if (myMovedElements.containsKey(member)) {
+          return true;
+        }
+        member = PsiTreeUtil.getParentOfType(member, PsiMember.class);
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.*;
+import gnu.trove.TObjectIntHashMap;
+
+import java.util.*;
+
+/**
+ * Symbol table assigning dense int ids to the members seen during analysis. QNames are only built for output.
+ * For every class, the table counts its visited methods, fields and inner classes, so that checking whether all
+ * members of a class were visited doesn't require looking them up again.
+ *
+ * @author yole
+ */
+class MemberTable {
+  private static final int QNAMES_PER_READ_ACTION = 1000;
+
+  private final TObjectIntHashMap<PsiElement> myIds = new TObjectIntHashMap<PsiElement>();
+  private final List<PsiElement> myElements = new ArrayList<PsiElement>();
+  private final BitSet myVisited = new BitSet();
+  private final BitSet myEnqueued = new BitSet();
+  private int myVisitedCount;
+  private final TObjectIntHashMap<PsiClass> myVisitedMemberCounts = new TObjectIntHashMap<PsiClass>();
+
+  public int getId(PsiElement element) {
+    if (myIds.containsKey(element)) {
+      return myIds.get(element);
+    }
+    int id = myElements.size();
+    myElements.add(element);
+    myIds.put(element, id);
+    return id;
+  }
+
+  public int findId(PsiElement element) {
+    return myIds.containsKey(element) ? myIds.get(element) : -1;
+  }
+
+  public PsiElement getElement(int id) {
+    return myElements.get(id);
+  }
+
+  public int size() {
+    return myElements.size();
+  }
+
+  /**
+   * @return true if the member was not queued for analysis before
+   */
+  public boolean markEnqueued(int id) {
+    if (myEnqueued.get(id)) {
+      return false;
+    }
+    myEnqueued.set(id);
+    return true;
+  }
+
+  /**
+   * @return true if the member was not visited before
+   */
+  public boolean markVisited(int id) {
+    if (myVisited.get(id)) {
+      return false;
+    }
+    myVisited.set(id);
+    myVisitedCount++;
+    PsiClass containingClass = getCountedContainingClass(myElements.get(id));
+    if (containingClass != null) {
+      myVisitedMemberCounts.adjustOrPutValue(containingClass, 1, 1);
+    }
+    return true;
+  }
+
+  private static PsiClass getCountedContainingClass(PsiElement element) {
+    if (element instanceof PsiMethod && ((PsiMethod) element).isConstructor()) {
+      return null;
+    }
+    if (element instanceof PsiMethod || element instanceof PsiField || element instanceof PsiClass) {
+      return ((PsiMember) element).getContainingClass();
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether all methods (except constructors), fields and inner classes of the class have been visited.
+   */
+  public boolean isFullyVisited(PsiClass aClass) {
+    int memberCount = aClass.getFields().length + aClass.getInnerClasses().length;
+    for (PsiMethod method : aClass.getMethods()) {
+      if (!method.isConstructor()) {
+        memberCount++;
+      }
+    }
+    return myVisitedMemberCounts.get(aClass) == memberCount;
+  }
+
+  public boolean isVisited(int id) {
+    return myVisited.get(id);
+  }
+
+  public boolean isVisited(PsiElement element) {
+    int id = findId(element);
+    return id >= 0 && myVisited.get(id);
+  }
+
+  public int getVisitedCount() {
+    return myVisitedCount;
+  }
+
+  /**
+   * @return the visited members sorted by their qnames
+   */
+  public SortedMap<String, PsiElement> getVisitedMembersByQName() {
+    SortedMap<String, PsiElement> result = new TreeMap<String, PsiElement>();
+    for (int id = myVisited.nextSetBit(0); id >= 0; id = myVisited.nextSetBit(id + 1)) {
+      PsiElement element = myElements.get(id);
+      result.put(PsiQNames.getQName(element), element);
+    }
+    return result;
+  }
+
+  /**
+   * Computes the qnames of all elements in a few short read actions, so that the results of the analysis don't need
+   * to reference PSI. See {@link ReadActions#runToCompletion} for the modification count.
+   */
+  public String[] getQNames(Project project, long modificationCount) {
+    final String[] result = new String[myElements.size()];
+    final int[] next = new int[1];
+    Runnable step = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < QNAMES_PER_READ_ACTION && next[0] < result.length; i++) {
+          result[next[0]] = PsiQNames.getQName(myElements.get(next[0]));
+          next[0]++;
+        }
+      }
+    };
+    while (next[0] < result.length) {
+      ReadActions.runToCompletion(project, modificationCount, step);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiElement;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+
+/**
+ * Breadth-first traversal of the members of the source module reachable from a set of roots, for the analyzers which
+ * don't need call chains. Every member is visited once; references to library code are skipped, and the other
+ * references are reported to the subclass, which decides which of them are bad.
+ *
+ * @author yole
+ */
+abstract class MemberTraversal {
+  private static final int MEMBERS_PER_READ_ACTION = 100;
+
+  private final MemberTable myMembers;
+  private final ModuleClassifier myModuleClassifier;
+  private final UnchainRules myRules;
+  private final ReferenceGraph myReferenceGraph;
+
+  MemberTraversal(MemberTable members, ModuleClassifier moduleClassifier, UnchainRules rules,
+                  ReferenceGraph referenceGraph) {
+    myMembers = members;
+    myModuleClassifier = moduleClassifier;
+    myRules = rules;
+    myReferenceGraph = referenceGraph;
+  }
+
+  /**
+   * Traverses the members in short read actions which give way to write actions, see {@link ReadActions}. Must be
+   * called without a read action.
+   *
+   * @param modificationCount the PSI modification count from before the roots were collected; if PSI changes during
+   *                          the traversal, it is cancelled with {@link com.intellij.openapi.progress.ProcessCanceledException}
+   */
+  void run(final Collection<? extends PsiElement> roots, long modificationCount) {
+    Project project = myModuleClassifier.getSourceModule().getProject();
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    final Queue<Integer> queue = new ArrayDeque<Integer>();
+    ReadActions.runToCompletion(project, modificationCount, new Runnable() {
+      @Override
+      public void run() {
+        for (PsiElement root : roots) {
+          int id = myMembers.getId(root);
+          if (myMembers.markVisited(id)) {
+            queue.add(id);
+          }
+        }
+      }
+    });
+    Runnable step = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < MEMBERS_PER_READ_ACTION && !queue.isEmpty(); i++) {
+          if (indicator != null) {
+            indicator.checkCanceled();
+          }
+          // the member stays in the queue until it has been visited, so a cancelled step can simply be run again
+          visit(queue.peek(), queue);
+          queue.remove();
+        }
+      }
+    };
+    while (!queue.isEmpty()) {
+      ReadActions.runToCompletion(project, modificationCount, step);
+    }
+  }
+
+  private void visit(int id, Queue<Integer> queue) {
+    for (Dependency dependency : myReferenceGraph.getDependencies(myMembers.getElement(id))) {
+      PsiElement target = dependency.getTarget();
+      Module module = myModuleClassifier.getModule(target);
+      if (module == null) {
+        continue;
+      }
+      if (myRules.isUnwantedDependency(target)) {
+        unwantedDependency(id, target);
+      }
+      else if (module == myModuleClassifier.getSourceModule()) {
+        int targetId = myMembers.getId(myRules.getElementToAnalyze(target));
+        sourceDependency(id, targetId);
+        if (myMembers.markVisited(targetId)) {
+          queue.add(targetId);
+        }
+      }
+      else {
+        moduleDependency(id, target, module);
+      }
+    }
+    memberVisited(id);
+  }
+
+  /**
+   * Called after all references of the member with the given id have been reported.
+   */
+  protected void memberVisited(int id) {
+  }
+
+  /**
+   * Reports a reference to a member of the source module, which is traversed if it hasn't been visited yet.
+   */
+  protected void sourceDependency(int id, int targetId) {
+  }
+
+  /**
+   * Reports a reference to a class matched by the unwanted dependency rules, in any module.
+   */
+  protected abstract void unwantedDependency(int id, PsiElement target);
+
+  /**
+   * Reports a reference to an element of a module other than the source module.
+   */
+  protected abstract void moduleDependency(int id, PsiElement target, Module module);
+}
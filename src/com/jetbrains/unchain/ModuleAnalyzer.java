@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
+import com.intellij.openapi.roots.ModuleFileIndex;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiManager;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+
+import java.util.*;
+
+/**
+ * Checks for every top-level production class of a module whether it can be moved to a target module. The member
+ * dependency graph of the whole module is built once and condensed into strongly connected components, so that the
+ * bad dependencies of each class are computed by a single pass over the condensation instead of a traversal per class.
+ *
+ * @author yole
+ */
+public class ModuleAnalyzer {
+  private final Module mySourceModule;
+  private final ModuleClassifier myModuleClassifier;
+  private final UnchainRules myRules;
+  private ReferenceGraph myReferenceGraph;
+
+  private final MemberTable myNodes = new MemberTable();
+  private final List<TIntArrayList> mySuccessors = new ArrayList<TIntArrayList>();
+  private final List<TIntArrayList> myDirectBadDependencies = new ArrayList<TIntArrayList>();
+  private final MemberTable myBadDependencyClasses = new MemberTable();
+
+  private int[] myComponents;
+  private int[][] myComponentSuccessors;
+  private int[][] myComponentNodes;
+
+  public ModuleAnalyzer(Module sourceModule, Module targetModule, UnchainRules rules) {
+    mySourceModule = sourceModule;
+    myModuleClassifier = new ModuleClassifier(sourceModule, targetModule, false);
+    myRules = rules;
+    myReferenceGraph = new ReferenceGraph(sourceModule.getProject());
+  }
+
+  public void setReferenceGraph(ReferenceGraph referenceGraph) {
+    myReferenceGraph = referenceGraph;
+  }
+
+  /**
+   * Returns the reports for all top-level production classes, sorted by class name. Must be called without a read
+   * action: the classes are collected and traversed in short read actions which give way to write actions, see
+   * {@link ReadActions}. If PSI is changed during the analysis, it is cancelled with
+   * {@link com.intellij.openapi.progress.ProcessCanceledException}.
+   */
+  public List<MovabilityReport> run() {
+    Project project = mySourceModule.getProject();
+    long modificationCount = ReadActions.getModificationCount(project);
+    final List<PsiClass> classes = new ArrayList<PsiClass>();
+    ReadActions.runToCompletion(project, modificationCount, new Runnable() {
+      @Override
+      public void run() {
+        classes.clear();
+        classes.addAll(collectTopLevelClasses());
+      }
+    });
+    buildGraph(classes, modificationCount);
+    computeComponents();
+    final BitSet[] badDependencies = propagateBadDependencies();
+
+    final Closures closures = new Closures(myNodes.getQNames(project, modificationCount), myComponents, myComponentNodes,
+                                           myComponentSuccessors);
+    final String[] badDependencyNames = myBadDependencyClasses.getQNames(project, modificationCount);
+    final List<MovabilityReport> result = new ArrayList<MovabilityReport>();
+    ReadActions.runToCompletion(project, modificationCount, new Runnable() {
+      @Override
+      public void run() {
+        result.clear();
+        for (PsiClass psiClass : classes) {
+          int node = myNodes.findId(psiClass);
+          BitSet bad = badDependencies[myComponents[node]];
+          List<String> badNames = new ArrayList<String>(bad.cardinality());
+          for (int i = bad.nextSetBit(0); i >= 0; i = bad.nextSetBit(i + 1)) {
+            badNames.add(badDependencyNames[i]);
+          }
+          Collections.sort(badNames);
+          PsiFile file = psiClass.getContainingFile();
+          result.add(new MovabilityReport(psiClass.getQualifiedName(), file != null ? file.getVirtualFile() : null,
+                                          psiClass.getTextOffset(), badNames, closures, node));
+        }
+      }
+    });
+    Collections.sort(result, new Comparator<MovabilityReport>() {
+      @Override
+      public int compare(MovabilityReport report1, MovabilityReport report2) {
+        return report1.getClassName().compareTo(report2.getClassName());
+      }
+    });
+    return result;
+  }
+
+  private List<PsiClass> collectTopLevelClasses() {
+    final List<PsiClass> result = new ArrayList<PsiClass>();
+    final PsiManager psiManager = PsiManager.getInstance(mySourceModule.getProject());
+    final ModuleFileIndex fileIndex = ModuleRootManager.getInstance(mySourceModule).getFileIndex();
+    fileIndex.iterateContent(new ContentIterator() {
+      @Override
+      public boolean processFile(VirtualFile fileOrDir) {
+        if (!fileOrDir.isDirectory() && fileIndex.isInSourceContent(fileOrDir) && !fileIndex.isInTestSourceContent(fileOrDir) &&
+            fileOrDir.getFileType() == StdFileTypes.JAVA) {
+          PsiFile psiFile = psiManager.findFile(fileOrDir);
+          if (psiFile instanceof PsiJavaFile) {
+            for (PsiClass psiClass : ((PsiJavaFile) psiFile).getClasses()) {
+              if (psiClass.getQualifiedName() != null) {
+                result.add(psiClass);
+              }
+            }
+          }
+        }
+        return true;
+      }
+    });
+    return result;
+  }
+
+  private void buildGraph(List<PsiClass> classes, long modificationCount) {
+    final TIntHashSet successors = new TIntHashSet();
+    final TIntHashSet badDependencies = new TIntHashSet();
+    new MemberTraversal(myNodes, myModuleClassifier, myRules, myReferenceGraph) {
+      @Override
+      protected void sourceDependency(int id, int targetId) {
+        successors.add(targetId);
+      }
+
+      @Override
+      protected void unwantedDependency(int id, PsiElement target) {
+        badDependencies.add(myBadDependencyClasses.getId(UnchainRules.getDependencyClass(target)));
+      }
+
+      @Override
+      protected void moduleDependency(int id, PsiElement target, Module module) {
+        if (myModuleClassifier.getKind(module) == ModuleClassifier.Kind.FORBIDDEN) {
+          unwantedDependency(id, target);
+        }
+      }
+
+      @Override
+      protected void memberVisited(int id) {
+        while (mySuccessors.size() <= id) {
+          mySuccessors.add(new TIntArrayList());
+          myDirectBadDependencies.add(new TIntArrayList());
+        }
+        mySuccessors.get(id).add(successors.toArray());
+        myDirectBadDependencies.get(id).add(badDependencies.toArray());
+        successors.clear();
+        badDependencies.clear();
+      }
+    }.run(classes, modificationCount);
+  }
+
+  /**
+   * Tarjan's algorithm without recursion. Components are numbered in the order they are completed, so every component
+   * has a higher number than all components reachable from it.
+   */
+  private void computeComponents() {
+    int nodeCount = myNodes.size();
+    int[] index = new int[nodeCount];
+    int[] lowLink = new int[nodeCount];
+    boolean[] onStack = new boolean[nodeCount];
+    int[] callStack = new int[nodeCount];
+    int[] edgePositions = new int[nodeCount];
+    TIntArrayList stack = new TIntArrayList();
+    Arrays.fill(index, -1);
+    myComponents = new int[nodeCount];
+
+    int nextIndex = 0;
+    int componentCount = 0;
+    for (int start = 0; start < nodeCount; start++) {
+      if (index[start] >= 0) {
+        continue;
+      }
+      int depth = 0;
+      callStack[0] = start;
+      edgePositions[0] = 0;
+      index[start] = lowLink[start] = nextIndex++;
+      stack.add(start);
+      onStack[start] = true;
+      while (depth >= 0) {
+        int node = callStack[depth];
+        TIntArrayList successors = mySuccessors.get(node);
+        if (edgePositions[depth] < successors.size()) {
+          int successor = successors.get(edgePositions[depth]++);
+          if (index[successor] < 0) {
+            index[successor] = lowLink[successor] = nextIndex++;
+            stack.add(successor);
+            onStack[successor] = true;
+            depth++;
+            callStack[depth] = successor;
+            edgePositions[depth] = 0;
+          }
+          else if (onStack[successor]) {
+            lowLink[node] = Math.min(lowLink[node], index[successor]);
+          }
+        }
+        else {
+          if (lowLink[node] == index[node]) {
+            int member;
+            do {
+              member = stack.remove(stack.size() - 1);
+              onStack[member] = false;
+              myComponents[member] = componentCount;
+            }
+            while (member != node);
+            componentCount++;
+          }
+          depth--;
+          if (depth >= 0) {
+            int parent = callStack[depth];
+            lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+          }
+        }
+      }
+    }
+
+    TIntArrayList[] componentNodes = new TIntArrayList[componentCount];
+    TIntHashSet[] componentSuccessors = new TIntHashSet[componentCount];
+    for (int i = 0; i < componentCount; i++) {
+      componentNodes[i] = new TIntArrayList();
+      componentSuccessors[i] = new TIntHashSet();
+    }
+    for (int node = 0; node < nodeCount; node++) {
+      int component = myComponents[node];
+      componentNodes[component].add(node);
+      TIntArrayList successors = mySuccessors.get(node);
+      for (int i = 0; i < successors.size(); i++) {
+        int successorComponent = myComponents[successors.get(i)];
+        if (successorComponent != component) {
+          componentSuccessors[component].add(successorComponent);
+        }
+      }
+    }
+    myComponentNodes = new int[componentCount][];
+    myComponentSuccessors = new int[componentCount][];
+    for (int i = 0; i < componentCount; i++) {
+      myComponentNodes[i] = componentNodes[i].toNativeArray();
+      myComponentSuccessors[i] = componentSuccessors[i].toArray();
+    }
+  }
+
+  private BitSet[] propagateBadDependencies() {
+    BitSet[] result = new BitSet[myComponentNodes.length];
+    for (int component = 0; component < myComponentNodes.length; component++) {
+      BitSet bad = new BitSet();
+      for (int node : myComponentNodes[component]) {
+        TIntArrayList direct = myDirectBadDependencies.get(node);
+        for (int i = 0; i < direct.size(); i++) {
+          bad.set(direct.get(i));
+        }
+      }
+      for (int successor : myComponentSuccessors[component]) {
+        bad.or(result[successor]);
+      }
+      result[component] = bad;
+    }
+    return result;
+  }
+
+  /**
+   * The condensation of the member graph with the qnames of the members. It is shared by the reports of all classes
+   * and doesn't reference PSI, so the reports can be kept around after the analysis.
+   */
+  static class Closures {
+    private final String[] myQNames;
+    private final int[] myComponents;
+    private final int[][] myComponentNodes;
+    private final int[][] myComponentSuccessors;
+
+    Closures(String[] qNames, int[] components, int[][] componentNodes, int[][] componentSuccessors) {
+      myQNames = qNames;
+      myComponents = components;
+      myComponentNodes = componentNodes;
+      myComponentSuccessors = componentSuccessors;
+    }
+
+    List<String> getClosure(int node) {
+      List<String> result = new ArrayList<String>();
+      BitSet visited = new BitSet();
+      TIntArrayList stack = new TIntArrayList();
+      stack.add(myComponents[node]);
+      visited.set(myComponents[node]);
+      while (!stack.isEmpty()) {
+        int component = stack.remove(stack.size() - 1);
+        for (int member : myComponentNodes[component]) {
+          result.add(myQNames[member]);
+        }
+        for (int successor : myComponentSuccessors[component]) {
+          if (!visited.get(successor)) {
+            visited.set(successor);
+            stack.add(successor);
+          }
+        }
+      }
+      Collections.sort(result);
+      return result;
+    }
+  }
+}
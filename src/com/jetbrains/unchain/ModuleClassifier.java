@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.Processor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Classifies dependencies by the module they belong to, relative to a source and a target module. The module of each
+ * file is looked up once per classifier, so it can be shared by all items of a run, including concurrent workers.
+ *
+ * @author yole
+ */
+public class ModuleClassifier {
+  public enum Kind {
+    /** The dependency is in the source module and moves along with the analyzed class. */
+    SOURCE,
+    /** The dependency is in the target module or one of its dependencies. */
+    ALLOWED,
+    /** The dependency is in a module the target module can't depend on. */
+    FORBIDDEN,
+    /** The dependency doesn't belong to any module. */
+    LIBRARY
+  }
+
+  private final Module mySourceModule;
+  private final Map<Module, Kind> myModuleKinds = new HashMap<Module, Kind>();
+  private final ConcurrentMap<VirtualFile, Ref<Module>> myFileModules = new ConcurrentHashMap<VirtualFile, Ref<Module>>();
+  private AnalysisMetrics myMetrics;
+
+  public ModuleClassifier(Module sourceModule, Module targetModule, boolean includeTests) {
+    mySourceModule = sourceModule;
+    Set<Module> allowedDependencies = collectAllowedDependencies(targetModule, includeTests);
+    for (Module module : ModuleManager.getInstance(targetModule.getProject()).getModules()) {
+      myModuleKinds.put(module, module == sourceModule ? Kind.SOURCE
+                                                       : allowedDependencies.contains(module) ? Kind.ALLOWED : Kind.FORBIDDEN);
+    }
+  }
+
+  /**
+   * Creates a classifier which only tells the source module from the other modules, for callers which check several
+   * target modules and only need the cached module lookup.
+   */
+  public ModuleClassifier(Module sourceModule) {
+    mySourceModule = sourceModule;
+    myModuleKinds.put(sourceModule, Kind.SOURCE);
+  }
+
+  public static Set<Module> collectAllowedDependencies(Module targetModule, boolean includeTests) {
+    final Set<Module> result = new HashSet<Module>();
+    result.add(targetModule);
+    OrderEnumerator orderEnumerator = ModuleRootManager.getInstance(targetModule).orderEntries();
+    if (!includeTests) {
+      orderEnumerator = orderEnumerator.productionOnly();
+    }
+    orderEnumerator.recursively().forEachModule(new Processor<Module>() {
+      @Override
+      public boolean process(Module module) {
+        result.add(module);
+        return true;
+      }
+    });
+    return result;
+  }
+
+  public void setMetrics(AnalysisMetrics metrics) {
+    myMetrics = metrics;
+  }
+
+  public Module getSourceModule() {
+    return mySourceModule;
+  }
+
+  public Kind getKind(PsiElement dependency) {
+    return getKind(getModule(dependency));
+  }
+
+  /**
+   * Returns the module of the element, or null for library code.
+   */
+  public Module getModule(PsiElement element) {
+    PsiFile file = element.getContainingFile();
+    VirtualFile vFile = file != null ? file.getVirtualFile() : null;
+    if (vFile == null) {
+      return ModuleUtil.findModuleForPsiElement(element);
+    }
+    Ref<Module> module = myFileModules.get(vFile);
+    if (myMetrics != null) {
+      myMetrics.moduleLookup(module != null);
+    }
+    if (module == null) {
+      module = Ref.create(ModuleUtil.findModuleForPsiElement(file));
+      myFileModules.put(vFile, module);
+    }
+    return module.get();
+  }
+
+  public Kind getKind(Module module) {
+    if (module == null) {
+      return Kind.LIBRARY;
+    }
+    Kind kind = myModuleKinds.get(module);
+    return kind != null ? kind : Kind.FORBIDDEN;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.pom.Navigatable;
+
+import java.util.List;
+
+/**
+ * Result of {@link ModuleAnalyzer} for a single top-level class. Like {@link BadDependencyItem}, the report doesn't
+ * reference PSI: the class is stored as a qname, file and offset.
+ *
+ * @author yole
+ */
+public class MovabilityReport {
+  private final String myClassName;
+  private final VirtualFile myFile;
+  private final int myOffset;
+  private final List<String> myBadDependencies;
+  private final ModuleAnalyzer.Closures myClosures;
+  private final int myNode;
+
+  MovabilityReport(String className, VirtualFile file, int offset, List<String> badDependencies,
+                   ModuleAnalyzer.Closures closures, int node) {
+    myClassName = className;
+    myFile = file;
+    myOffset = offset;
+    myBadDependencies = badDependencies;
+    myClosures = closures;
+    myNode = node;
+  }
+
+  public String getClassName() {
+    return myClassName;
+  }
+
+  public Navigatable getNavigatable(Project project) {
+    return myFile != null && myFile.isValid() ? new OpenFileDescriptor(project, myFile, myOffset) : null;
+  }
+
+  public boolean canMove() {
+    return myBadDependencies.isEmpty();
+  }
+
+  /**
+   * @return qualified names of the classes which the class can't depend on in the target module
+   */
+  public List<String> getBadDependencies() {
+    return myBadDependencies;
+  }
+
+  /**
+   * @return qnames of all members which would have to be moved together with the class, computed on demand
+   */
+  public List<String> getClosure() {
+    return myClosures.getClosure(myNode);
+  }
+
+  @Override
+  public String toString() {
+    return myClassName;
+  }
+}
@@ -17,35 +17,74 @@
 package com.jetbrains.unchain;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.*;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.Function;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * @author yole
  */
 public class PsiQNames {
+  private static final Key<CachedValue<String>> QNAME_KEY = Key.create("unchain.qName");
+  private static final Key<CachedValue<Set<String>>> OVERLOADED_NAMES_KEY = Key.create("unchain.overloadedMethodNames");
+
+  /**
+   * Returns the qname of a class or member. QNames are cached on the elements until the next PSI change.
+   */
   public static String getQName(final PsiElement element) {
+    if (!(element instanceof PsiMember)) {
+      return computeQName(element);
+    }
+    return CachedValuesManager.getManager(element.getProject()).getCachedValue(element, QNAME_KEY, new CachedValueProvider<String>() {
+      @Override
+      public Result<String> compute() {
+        return Result.create(computeQName(element), PsiModificationTracker.MODIFICATION_COUNT);
+      }
+    }, false);
+  }
+
+  private static String computeQName(PsiElement element) {
     if (element instanceof PsiClass) {
       return getClassQName((PsiClass) element);
     }
     if (element instanceof PsiMember) {
       PsiMember member = (PsiMember) element;
       PsiClass containingClass = member.getContainingClass();
-      String qName = getClassQName(containingClass) + "#" + member.getName();
-      if (member instanceof PsiMethod) {
-        PsiMethod[] methodsByName = containingClass.findMethodsByName(member.getName(), false);
-        if (methodsByName.length > 1) {
-          return qName + "(" + collectParameterTypes((PsiMethod) member) + ")";
-        }
+      String qName = getQName(containingClass) + "#" + member.getName();
+      if (member instanceof PsiMethod && getOverloadedMethodNames(containingClass).contains(member.getName())) {
+        return qName + "(" + collectParameterTypes((PsiMethod) member) + ")";
       }
       return qName;
     }
     throw new UnsupportedOperationException("Don't know how to build qname for " + element);
   }
 
+  private static Set<String> getOverloadedMethodNames(final PsiClass aClass) {
+    return CachedValuesManager.getManager(aClass.getProject()).getCachedValue(aClass, OVERLOADED_NAMES_KEY, new CachedValueProvider<Set<String>>() {
+      @Override
+      public Result<Set<String>> compute() {
+        Set<String> names = new HashSet<String>();
+        Set<String> overloadedNames = new HashSet<String>();
+        for (PsiMethod method : aClass.getMethods()) {
+          if (!names.add(method.getName())) {
+            overloadedNames.add(method.getName());
+          }
+        }
+        return Result.create(overloadedNames, PsiModificationTracker.MODIFICATION_COUNT);
+      }
+    }, false);
+  }
+
   private static String getClassQName(PsiClass element) {
     String qualifiedName = element.getQualifiedName();
     if (qualifiedName != null) {
@@ -78,10 +117,14 @@ public class PsiQNames {
   }
 
   public static PsiElement findElementByQName(Project project, String qName) {
+    return findElementByQName(project, qName, GlobalSearchScope.projectScope(project));
+  }
+
+  public static PsiElement findElementByQName(Project project, String qName, GlobalSearchScope scope) {
     if (qName == null) {
       return null;
     }
-    PsiClass aClass = findClassByQName(project, qName);
+    PsiClass aClass = JavaPsiFacade.getInstance(project).findClass(extractClassName(qName), scope);
     if (aClass == null) {
       return null;
     }
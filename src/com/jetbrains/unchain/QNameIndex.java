@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.SmartPointerManager;
+import com.intellij.psi.SmartPsiElementPointer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the qnames shown in the results of an analysis run to pointers to their elements. Elements which are not in the
+ * index or have been deleted are looked up by qname.
+ *
+ * @author yole
+ */
+public class QNameIndex {
+  private final Project myProject;
+  private final Map<String, SmartPsiElementPointer<PsiElement>> myPointers = new HashMap<String, SmartPsiElementPointer<PsiElement>>();
+
+  public QNameIndex(Project project) {
+    myProject = project;
+  }
+
+  public void add(String qName, PsiElement element) {
+    myPointers.put(qName, SmartPointerManager.getInstance(myProject).createSmartPsiElementPointer(element));
+  }
+
+  public boolean contains(String qName) {
+    return myPointers.containsKey(qName);
+  }
+
+  public PsiElement findElement(String qName) {
+    SmartPsiElementPointer<PsiElement> pointer = myPointers.get(qName);
+    PsiElement element = pointer != null ? pointer.getElement() : null;
+    return element != null ? element : PsiQNames.findElementByQName(myProject, qName);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.EmptyRunnable;
+import com.intellij.psi.PsiManager;
+
+/**
+ * Runs the steps of long PSI traversals in short read actions which give way to write actions, so that an analysis
+ * running in the background doesn't block typing or refactorings.
+ *
+ * @author yole
+ */
+public class ReadActions {
+  private ReadActions() {
+  }
+
+  /**
+   * Runs the step in a read action which is cancelled as soon as a write action is pending. If the step is cancelled,
+   * waits until the write action has finished and returns false, so that the caller can check whether PSI has changed
+   * and run the step again.
+   * <p/>
+   * This is meant to be called without a read action. If the caller already holds one, the step is run directly:
+   * no write action can start before the caller's read action ends, so waiting for it would never finish.
+   */
+  public static boolean runWithWriteActionPriority(Runnable step) {
+    Application application = ApplicationManager.getApplication();
+    if (application.isReadAccessAllowed()) {
+      step.run();
+      return true;
+    }
+    ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    if (ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(step)) {
+      return true;
+    }
+    if (indicator != null) {
+      indicator.checkCanceled();
+    }
+    application.runReadAction(EmptyRunnable.getInstance());
+    return false;
+  }
+
+  /**
+   * Runs the step with {@link #runWithWriteActionPriority} until it completes, so the step must be safe to run again
+   * after it has been cancelled. Throws {@link ProcessCanceledException} if PSI has been changed since the
+   * modification count was taken, because the elements collected by the earlier steps may no longer be valid.
+   */
+  public static void runToCompletion(final Project project, final long modificationCount, final Runnable step) {
+    final boolean[] psiChanged = new boolean[1];
+    Runnable checkedStep = new Runnable() {
+      @Override
+      public void run() {
+        if (getModificationCount(project) != modificationCount) {
+          psiChanged[0] = true;
+          return;
+        }
+        step.run();
+      }
+    };
+    while (!runWithWriteActionPriority(checkedStep)) {
+      // retry after the write action
+    }
+    if (psiChanged[0]) {
+      throw new ProcessCanceledException();
+    }
+  }
+
+  public static long getModificationCount(Project project) {
+    return PsiManager.getInstance(project).getModificationTracker().getModificationCount();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiManager;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolved member-level references collected by Unchainer runs. The graph does not depend on the target module or on
+ * the unwanted dependency and forced merge rules, so it can be reused by subsequent runs as long as PSI has not changed.
+ *
+ * @author yole
+ */
+public class ReferenceGraph {
+  private final Project myProject;
+  private final long myModificationCount;
+  private final ConcurrentMap<PsiElement, List<Dependency>> myDependencies =
+      new ConcurrentHashMap<PsiElement, List<Dependency>>();
+
+  public ReferenceGraph(Project project) {
+    myProject = project;
+    myModificationCount = getModificationCount();
+  }
+
+  private long getModificationCount() {
+    return PsiManager.getInstance(myProject).getModificationTracker().getModificationCount();
+  }
+
+  public boolean isUpToDate() {
+    return getModificationCount() == myModificationCount;
+  }
+
+  /**
+   * Returns the references from the given element, taking them from this graph, from {@link ReferenceIndex}, or
+   * resolving them if the element hasn't been seen before.
+   */
+  public List<Dependency> getDependencies(PsiElement element) {
+    return getDependencies(element, null);
+  }
+
+  /**
+   * @param metrics the metrics of the current run to record the graph hits, index hits and resolve time in, or null
+   */
+  public List<Dependency> getDependencies(PsiElement element, AnalysisMetrics metrics) {
+    List<Dependency> dependencies = myDependencies.get(element);
+    if (dependencies != null) {
+      if (metrics != null) {
+        metrics.graphHit();
+      }
+      return dependencies;
+    }
+    ReferenceIndex index = ReferenceIndex.getInstance(myProject);
+    dependencies = index.getDependencies(element);
+    if (dependencies != null) {
+      if (metrics != null) {
+        metrics.indexHit();
+      }
+    }
+    else {
+      long start = System.nanoTime();
+      dependencies = DependencyCollector.collectDependencies(element);
+      if (metrics != null) {
+        metrics.membersResolved(dependencies.size(), System.nanoTime() - start);
+      }
+      index.putDependencies(element, dependencies);
+    }
+    myDependencies.put(element, dependencies);
+    return dependencies;
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.PersistentHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Persistent cache of the outgoing references of analyzed members, keyed by the URL of the containing file and the
+ * kind and qname of the member. An entry is only used if the containing file has the same timestamp and length as when
+ * the entry was written and has no unsaved changes, and if the files of the referenced classes haven't changed either,
+ * so that added overloads or removed members in other files aren't missed. Every entry also stores a stamp of all Java
+ * files of the project, which catches changes in other files, such as a new class shadowing a referenced one or a new
+ * overload in a supertype, made in another session. Within the IDE session which wrote the entry, it is also dropped
+ * after any change outside of code blocks, which covers unsaved changes in other files. Otherwise Unchainer resolves
+ * the references again and overwrites the entry. Entries of deleted files are removed when the project is closed.
+ *
+ * @author yole
+ */
+public class ReferenceIndex implements Disposable {
+  private static final Logger LOG = Logger.getInstance(ReferenceIndex.class);
+  private static final int VERSION = 5;
+  private static final char KEY_SEPARATOR = '|';
+  private static final long SESSION_ID = new Random().nextLong();
+  private static final char CLASS_KIND = 'C';
+  private static final char METHOD_KIND = 'M';
+  private static final char FIELD_KIND = 'F';
+
+  private final Project myProject;
+  private PersistentHashMap<String, IndexedReferences> myMap;
+  private long myProjectStamp;
+  private long myProjectStampModificationCount = -1;
+
+  private static class IndexedReferences {
+    private final long myTimeStamp;
+    private final long myLength;
+    private final long mySessionId;
+    private final long myModificationCount;
+    private final long myTargetFilesStamp;
+    private final long myProjectStamp;
+    private final String[] myTargets;
+    private final int[] myOffsets;
+
+    private IndexedReferences(long timeStamp, long length, long sessionId, long modificationCount,
+                              long targetFilesStamp, long projectStamp, String[] targets, int[] offsets) {
+      myTimeStamp = timeStamp;
+      myLength = length;
+      mySessionId = sessionId;
+      myModificationCount = modificationCount;
+      myTargetFilesStamp = targetFilesStamp;
+      myProjectStamp = projectStamp;
+      myTargets = targets;
+      myOffsets = offsets;
+    }
+  }
+
+  public static ReferenceIndex getInstance(Project project) {
+    return ServiceManager.getService(project, ReferenceIndex.class);
+  }
+
+  public ReferenceIndex(Project project) {
+    myProject = project;
+    File dir = new File(PathManager.getSystemPath(), "unchain" + File.separator + project.getLocationHash());
+    File file = new File(dir, "references." + VERSION);
+    try {
+      myMap = createMap(file);
+    }
+    catch (IOException e) {
+      LOG.info("Failed to open reference index, rebuilding", e);
+      FileUtil.delete(dir);
+      try {
+        myMap = createMap(file);
+      }
+      catch (IOException e1) {
+        LOG.warn("Failed to create reference index", e1);
+      }
+    }
+  }
+
+  private static PersistentHashMap<String, IndexedReferences> createMap(File file) throws IOException {
+    FileUtil.createParentDirs(file);
+    return new PersistentHashMap<String, IndexedReferences>(file, new EnumeratorStringDescriptor(), new ReferencesExternalizer());
+  }
+
+  @Nullable
+  public List<Dependency> getDependencies(PsiElement element) {
+    VirtualFile vFile = getIndexableFile(element);
+    if (vFile == null) {
+      return null;
+    }
+    IndexedReferences references = get(getKey(vFile, element));
+    if (references == null || references.myTimeStamp != vFile.getTimeStamp() || references.myLength != vFile.getLength()) {
+      return null;
+    }
+    if (references.mySessionId == SESSION_ID && references.myModificationCount != getModificationCount()) {
+      return null;
+    }
+    if (references.myProjectStamp != getProjectStamp()) {
+      return null;
+    }
+
+    GlobalSearchScope scope = GlobalSearchScope.allScope(myProject);
+    List<Dependency> result = new ArrayList<Dependency>(references.myTargets.length);
+    for (int i = 0; i < references.myTargets.length; i++) {
+      PsiElement target = findTarget(references.myTargets[i], scope);
+      if (target == null) {
+        return null;
+      }
+      result.add(new Dependency(element, references.myOffsets[i], target));
+    }
+    if (getTargetFilesStamp(result) != references.myTargetFilesStamp) {
+      return null;
+    }
+    return result;
+  }
+
+  public void putDependencies(PsiElement element, List<Dependency> dependencies) {
+    VirtualFile vFile = getIndexableFile(element);
+    if (vFile == null) {
+      return;
+    }
+    String[] targets = new String[dependencies.size()];
+    int[] offsets = new int[dependencies.size()];
+    for (int i = 0; i < targets.length; i++) {
+      Dependency dependency = dependencies.get(i);
+      targets[i] = getKindAndQName(dependency.getTarget());
+      offsets[i] = dependency.getOffset();
+    }
+    put(getKey(vFile, element), new IndexedReferences(vFile.getTimeStamp(), vFile.getLength(), SESSION_ID,
+                                                      getModificationCount(), getTargetFilesStamp(dependencies),
+                                                      getProjectStamp(), targets, offsets));
+  }
+
+  private static String getKey(VirtualFile vFile, PsiElement element) {
+    return vFile.getUrl() + KEY_SEPARATOR + getKindAndQName(element);
+  }
+
+  /**
+   * A field and a method with the same name have the same qname, so the kind of the member is stored with the qname.
+   */
+  private static String getKindAndQName(PsiElement element) {
+    char kind = element instanceof PsiField ? FIELD_KIND : element instanceof PsiMethod ? METHOD_KIND : CLASS_KIND;
+    return kind + PsiQNames.getQName(element);
+  }
+
+  /**
+   * Finds the target stored by {@link #getKindAndQName}, or returns null if it no longer exists or doesn't have the
+   * stored kind and qname.
+   */
+  @Nullable
+  private PsiElement findTarget(String kindAndQName, GlobalSearchScope scope) {
+    char kind = kindAndQName.charAt(0);
+    String qName = kindAndQName.substring(1);
+    PsiElement target;
+    if (kind == FIELD_KIND) {
+      PsiClass aClass = JavaPsiFacade.getInstance(myProject).findClass(PsiQNames.extractClassName(qName), scope);
+      String fieldName = qName.substring(qName.indexOf('#') + 1);
+      target = aClass != null ? aClass.findFieldByName(fieldName, false) : null;
+    }
+    else {
+      target = PsiQNames.findElementByQName(myProject, qName, scope);
+    }
+    if (target == null || !kindAndQName.equals(getKindAndQName(target))) {
+      return null;
+    }
+    return target;
+  }
+
+  private long getModificationCount() {
+    return PsiManager.getInstance(myProject).getModificationTracker().getOutOfCodeBlockModificationCount();
+  }
+
+  /**
+   * Combines the URLs, timestamps and lengths of all Java files in the project content. The stamp is computed again
+   * only after a change of the Java structure, so within a session it costs a pass over the file index per structure
+   * change rather than per entry.
+   */
+  private synchronized long getProjectStamp() {
+    PsiModificationTracker tracker = PsiManager.getInstance(myProject).getModificationTracker();
+    long structureModificationCount = tracker.getJavaStructureModificationCount();
+    if (structureModificationCount != myProjectStampModificationCount) {
+      final long[] stamp = new long[1];
+      ProjectRootManager.getInstance(myProject).getFileIndex().iterateContent(new ContentIterator() {
+        @Override
+        public boolean processFile(VirtualFile fileOrDir) {
+          if (!fileOrDir.isDirectory() && fileOrDir.getFileType() == StdFileTypes.JAVA) {
+            stamp[0] = stamp[0] * 31 + fileOrDir.getUrl().hashCode();
+            stamp[0] = stamp[0] * 31 + fileOrDir.getTimeStamp();
+            stamp[0] = stamp[0] * 31 + fileOrDir.getLength();
+          }
+          return true;
+        }
+      });
+      myProjectStamp = stamp[0];
+      myProjectStampModificationCount = structureModificationCount;
+    }
+    return myProjectStamp;
+  }
+
+  /**
+   * Combines the timestamps and lengths of the files containing the targets, in the order of the dependencies.
+   */
+  private static long getTargetFilesStamp(List<Dependency> dependencies) {
+    long result = 0;
+    for (Dependency dependency : dependencies) {
+      PsiFile file = dependency.getTarget().getContainingFile();
+      VirtualFile vFile = file != null ? file.getVirtualFile() : null;
+      if (vFile != null) {
+        result = result * 31 + vFile.getTimeStamp();
+        result = result * 31 + vFile.getLength();
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private synchronized IndexedReferences get(String qName) {
+    if (myMap == null) {
+      return null;
+    }
+    try {
+      return myMap.get(qName);
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+  }
+
+  private synchronized void put(String qName, IndexedReferences references) {
+    if (myMap == null) {
+      return;
+    }
+    try {
+      myMap.put(qName, references);
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  @Nullable
+  private VirtualFile getIndexableFile(PsiElement element) {
+    if (myMap == null) {
+      return null;
+    }
+    PsiFile file = element.getContainingFile();
+    VirtualFile vFile = file != null ? file.getVirtualFile() : null;
+    if (vFile == null || !vFile.isInLocalFileSystem()) {
+      return null;
+    }
+    Document document = FileDocumentManager.getInstance().getCachedDocument(vFile);
+    if (document != null && (FileDocumentManager.getInstance().isDocumentUnsaved(document) ||
+                             PsiDocumentManager.getInstance(myProject).isUncommited(document))) {
+      return null;
+    }
+    return vFile;
+  }
+
+  /**
+   * Removes the entries of files which no longer exist, so that the index doesn't grow with every deleted or renamed
+   * file.
+   */
+  private void pruneDeletedFiles() throws IOException {
+    VirtualFileManager fileManager = VirtualFileManager.getInstance();
+    int removed = 0;
+    for (String key : myMap.getAllKeysWithExistingMapping()) {
+      int separator = key.lastIndexOf(KEY_SEPARATOR);
+      if (separator < 0 || fileManager.findFileByUrl(key.substring(0, separator)) == null) {
+        myMap.remove(key);
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      LOG.debug("Removed " + removed + " reference index entries of deleted files");
+    }
+  }
+
+  @Override
+  public synchronized void dispose() {
+    if (myMap != null) {
+      try {
+        pruneDeletedFiles();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      try {
+        myMap.close();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      myMap = null;
+    }
+  }
+
+  private static class ReferencesExternalizer implements DataExternalizer<IndexedReferences> {
+    @Override
+    public void save(DataOutput out, IndexedReferences value) throws IOException {
+      out.writeLong(value.myTimeStamp);
+      out.writeLong(value.myLength);
+      out.writeLong(value.mySessionId);
+      out.writeLong(value.myModificationCount);
+      out.writeLong(value.myTargetFilesStamp);
+      out.writeLong(value.myProjectStamp);
+      out.writeInt(value.myTargets.length);
+      for (int i = 0; i < value.myTargets.length; i++) {
+        IOUtil.writeUTF(out, value.myTargets[i]);
+        out.writeInt(value.myOffsets[i]);
+      }
+    }
+
+    @Override
+    public IndexedReferences read(DataInput in) throws IOException {
+      long timeStamp = in.readLong();
+      long length = in.readLong();
+      long sessionId = in.readLong();
+      long modificationCount = in.readLong();
+      long targetFilesStamp = in.readLong();
+      long projectStamp = in.readLong();
+      int count = in.readInt();
+      String[] targets = new String[count];
+      int[] offsets = new int[count];
+      for (int i = 0; i < count; i++) {
+        targets[i] = IOUtil.readUTF(in);
+        offsets[i] = in.readInt();
+      }
+      return new IndexedReferences(timeStamp, length, sessionId, modificationCount, targetFilesStamp, projectStamp,
+                                   targets, offsets);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiElement;
+
+import java.util.*;
+
+/**
+ * Checks to which of several candidate target modules a set of classes can be moved. The members that would move
+ * along with the classes don't depend on the target module, so the closure is traversed only once. Every module is
+ * mapped to the set of candidates that can't depend on it, and every bad dependency class collects the candidates for
+ * which it is bad, so that the bad dependencies of all candidates are known at the end of the traversal.
+ *
+ * @author yole
+ */
+public class TargetModuleAnalyzer {
+  private final List<PsiClass> myRoots;
+  private final Module mySourceModule;
+  private final List<Module> myCandidates = new ArrayList<Module>();
+  private final UnchainRules myRules;
+  private ReferenceGraph myReferenceGraph;
+
+  private final Map<Module, BitSet> myForbiddingCandidates = new HashMap<Module, BitSet>();
+  private final MemberTable myMembers = new MemberTable();
+  private final MemberTable myBadDependencyClasses = new MemberTable();
+  private final List<BitSet> myBadForCandidates = new ArrayList<BitSet>();
+
+  /**
+   * @param roots      the classes to move; all of them must belong to the same module
+   * @param candidates the target modules to check; the module of the classes is skipped
+   */
+  public TargetModuleAnalyzer(List<PsiClass> roots, Collection<Module> candidates, UnchainRules rules) {
+    myRoots = roots;
+    mySourceModule = ModuleUtil.findModuleForPsiElement(roots.get(0));
+    for (Module candidate : candidates) {
+      if (candidate != mySourceModule) {
+        myCandidates.add(candidate);
+      }
+    }
+    myRules = rules;
+    myReferenceGraph = new ReferenceGraph(mySourceModule.getProject());
+  }
+
+  public void setReferenceGraph(ReferenceGraph referenceGraph) {
+    myReferenceGraph = referenceGraph;
+  }
+
+  /**
+   * Returns the reports for all candidates, the ones with the fewest bad dependencies first. Must be called without a
+   * read action: like {@link ModuleAnalyzer}, the analyzer takes short read actions which give way to write actions.
+   */
+  public List<TargetModuleReport> run() {
+    Project project = mySourceModule.getProject();
+    long modificationCount = ReadActions.getModificationCount(project);
+    ReadActions.runToCompletion(project, modificationCount, new Runnable() {
+      @Override
+      public void run() {
+        collectForbiddingCandidates();
+      }
+    });
+    traverse(modificationCount);
+    String[] badDependencyNames = myBadDependencyClasses.getQNames(project, modificationCount);
+
+    List<List<String>> badDependencies = new ArrayList<List<String>>();
+    for (Module ignored : myCandidates) {
+      badDependencies.add(new ArrayList<String>());
+    }
+    for (int id = 0; id < myBadForCandidates.size(); id++) {
+      String qName = badDependencyNames[id];
+      BitSet candidates = myBadForCandidates.get(id);
+      for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+        badDependencies.get(i).add(qName);
+      }
+    }
+
+    List<TargetModuleReport> result = new ArrayList<TargetModuleReport>();
+    for (int i = 0; i < myCandidates.size(); i++) {
+      List<String> badNames = badDependencies.get(i);
+      Collections.sort(badNames);
+      result.add(new TargetModuleReport(myCandidates.get(i), badNames));
+    }
+    Collections.sort(result, new Comparator<TargetModuleReport>() {
+      @Override
+      public int compare(TargetModuleReport report1, TargetModuleReport report2) {
+        int count1 = report1.getBadDependencies().size();
+        int count2 = report2.getBadDependencies().size();
+        if (count1 != count2) {
+          return count1 < count2 ? -1 : 1;
+        }
+        return report1.getModuleName().compareTo(report2.getModuleName());
+      }
+    });
+    return result;
+  }
+
+  private void collectForbiddingCandidates() {
+    myForbiddingCandidates.clear();
+    VirtualFile vFile = myRoots.get(0).getContainingFile().getVirtualFile();
+    boolean includeTests = ProjectFileIndex.SERVICE.getInstance(mySourceModule.getProject()).isInTestSourceContent(vFile);
+    Module[] modules = ModuleManager.getInstance(mySourceModule.getProject()).getModules();
+    for (Module module : modules) {
+      myForbiddingCandidates.put(module, new BitSet());
+    }
+    for (int i = 0; i < myCandidates.size(); i++) {
+      Set<Module> allowedDependencies = ModuleClassifier.collectAllowedDependencies(myCandidates.get(i), includeTests);
+      for (Module module : modules) {
+        if (!allowedDependencies.contains(module)) {
+          myForbiddingCandidates.get(module).set(i);
+        }
+      }
+    }
+  }
+
+  private void traverse(long modificationCount) {
+    final BitSet allCandidates = new BitSet();
+    allCandidates.set(0, myCandidates.size());
+    new MemberTraversal(myMembers, new ModuleClassifier(mySourceModule), myRules, myReferenceGraph) {
+      @Override
+      protected void unwantedDependency(int id, PsiElement target) {
+        addBadDependency(target, allCandidates);
+      }
+
+      @Override
+      protected void moduleDependency(int id, PsiElement target, Module module) {
+        BitSet forbidding = myForbiddingCandidates.get(module);
+        addBadDependency(target, forbidding != null ? forbidding : allCandidates);
+      }
+    }.run(myRoots, modificationCount);
+  }
+
+  private void addBadDependency(PsiElement target, BitSet candidates) {
+    if (candidates.isEmpty()) {
+      return;
+    }
+    int id = myBadDependencyClasses.getId(UnchainRules.getDependencyClass(target));
+    while (myBadForCandidates.size() <= id) {
+      myBadForCandidates.add(new BitSet());
+    }
+    myBadForCandidates.get(id).or(candidates);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.module.Module;
+
+import java.util.List;
+
+/**
+ * Result of {@link TargetModuleAnalyzer} for a single candidate target module.
+ *
+ * @author yole
+ */
+public class TargetModuleReport {
+  private final Module myModule;
+  private final List<String> myBadDependencies;
+
+  TargetModuleReport(Module module, List<String> badDependencies) {
+    myModule = module;
+    myBadDependencies = badDependencies;
+  }
+
+  public Module getModule() {
+    return myModule;
+  }
+
+  public String getModuleName() {
+    return myModule.getName();
+  }
+
+  public boolean canMove() {
+    return myBadDependencies.isEmpty();
+  }
+
+  /**
+   * @return qualified names of the classes which the moved classes can't depend on in this module
+   */
+  public List<String> getBadDependencies() {
+    return myBadDependencies;
+  }
+
+  @Override
+  public String toString() {
+    return getModuleName();
+  }
+}
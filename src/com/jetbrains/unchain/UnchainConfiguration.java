@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.openapi.components.*;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.xmlb.XmlSerializerUtil;
+import com.intellij.util.xmlb.annotations.AbstractCollection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unwanted dependency and forced merge rules of a project, stored in the project configuration (unchain.xml in
+ * the .idea directory), so that they can be shared and reused by the command-line analysis.
+ *
+ * @author yole
+ */
+@State(name = "UnchainConfiguration", storages = {
+    @Storage(id = "default", file = "$PROJECT_FILE$"),
+    @Storage(id = "dir", file = "$PROJECT_CONFIG_DIR$/unchain.xml", scheme = StorageScheme.DIRECTORY_BASED)
+})
+public class UnchainConfiguration implements PersistentStateComponent<UnchainConfiguration> {
+  private static final String MERGE_PREFIX = "merge:";
+
+  @AbstractCollection(surroundWithTag = false, elementTag = "unwanted", elementValueAttribute = "pattern")
+  public List<String> UNWANTED_DEPENDENCIES = new ArrayList<String>();
+  @AbstractCollection(surroundWithTag = false, elementTag = "merge", elementValueAttribute = "pattern")
+  public List<String> FORCED_MERGES = new ArrayList<String>();
+
+  public static UnchainConfiguration getInstance(Project project) {
+    return ServiceManager.getService(project, UnchainConfiguration.class);
+  }
+
+  @Override
+  public UnchainConfiguration getState() {
+    return this;
+  }
+
+  @Override
+  public void loadState(UnchainConfiguration state) {
+    XmlSerializerUtil.copyBean(state, this);
+  }
+
+  public UnchainRules createRules() {
+    return createRules(Collections.<String>emptyList(), Collections.<String>emptyList());
+  }
+
+  /**
+   * Creates the rules with additional patterns which apply only to the current session and are not stored.
+   */
+  public UnchainRules createRules(List<String> sessionUnwantedDependencies, List<String> sessionForcedMerges) {
+    UnchainRules rules = new UnchainRules();
+    rules.setUnwantedDependencies(ContainerUtil.concat(UNWANTED_DEPENDENCIES, sessionUnwantedDependencies));
+    rules.setForcedMerges(ContainerUtil.concat(FORCED_MERGES, sessionForcedMerges));
+    return rules;
+  }
+
+  public String getRulesText() {
+    return getRulesText(UNWANTED_DEPENDENCIES, FORCED_MERGES);
+  }
+
+  /**
+   * Returns the rules as text: one unwanted dependency pattern per line, forced merges prefixed with "merge:".
+   */
+  public static String getRulesText(List<String> unwantedDependencies, List<String> forcedMerges) {
+    StringBuilder builder = new StringBuilder();
+    for (String pattern : unwantedDependencies) {
+      builder.append(pattern).append("\n");
+    }
+    for (String pattern : forcedMerges) {
+      builder.append(MERGE_PREFIX).append(pattern).append("\n");
+    }
+    return builder.toString();
+  }
+
+  public void setRulesText(String text) {
+    UNWANTED_DEPENDENCIES.clear();
+    FORCED_MERGES.clear();
+    for (String line : StringUtil.splitByLines(text)) {
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      if (line.startsWith(MERGE_PREFIX)) {
+        FORCED_MERGES.add(line.substring(MERGE_PREFIX.length()).trim());
+      }
+      else {
+        UNWANTED_DEPENDENCIES.add(line);
+      }
+    }
+  }
+}
@@ -16,53 +16,198 @@
 
 package com.jetbrains.unchain;
 
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiManager;
 import com.intellij.refactoring.JavaRefactoringFactory;
-import com.intellij.refactoring.MoveClassesOrPackagesRefactoring;
 import com.intellij.refactoring.MoveDestination;
+import com.intellij.refactoring.move.moveClassesOrPackages.MoveClassesOrPackagesProcessor;
+import com.intellij.usageView.UsageInfo;
+import com.intellij.util.Processor;
 import com.intellij.util.containers.MultiMap;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Moves a set of classes to the target module in three steps: {@link #prepare()} groups the classes by package on the
+ * EDT, {@link #findUsages} searches for the usages and conflicts of all packages concurrently in a background thread,
+ * and {@link #performMove()} moves the classes in a single command, so that the move can be undone as one command.
+ * The conflicts of all packages are returned by {@link #getConflicts()}, so that the caller can show them in a single
+ * dialog before the move. There is one refactoring processor per package because a processor moves its elements to
+ * a single target package.
+ *
  * @author yole
  */
 public class UnchainMover {
   private final Module myTargetModule;
   private final List<String> myQNames;
+  private final QNameIndex myQNameIndex;
+  private final List<BatchMoveProcessor> myProcessors = new ArrayList<BatchMoveProcessor>();
+  private final Map<BatchMoveProcessor, UsageInfo[]> myUsages = new ConcurrentHashMap<BatchMoveProcessor, UsageInfo[]>();
+  private long myModificationCount;
+
+  private static class BatchMoveProcessor extends MoveClassesOrPackagesProcessor {
+    private final List<String> myQNames;
+    private final MultiMap<PsiElement, String> myConflicts = new MultiMap<PsiElement, String>();
+
+    private BatchMoveProcessor(Project project, List<String> qNames, PsiElement[] elements,
+                               MoveDestination moveDestination) {
+      super(project, elements, moveDestination, true, true, null);
+      myQNames = qNames;
+    }
+
+    /**
+     * Finds the usages and runs the conflict detection of the processor, collecting the conflicts instead of showing
+     * them, and returns the usages without the conflict entries.
+     */
+    private UsageInfo[] doFindUsages() {
+      Ref<UsageInfo[]> usages = Ref.create(findUsages());
+      preprocessUsages(usages);
+      return usages.get();
+    }
+
+    @Override
+    protected boolean showConflicts(MultiMap<PsiElement, String> conflicts, UsageInfo[] usages) {
+      myConflicts.putAllValues(conflicts);
+      return true;
+    }
 
-  public UnchainMover(Module targetModule, List<String> qNames) {
+    /**
+     * Performs the refactoring with the usages found before, through the same path as a regular move, so that it
+     * runs in a refactoring transaction and notifies the refactoring and move listeners.
+     */
+    private void doMove(UsageInfo[] usages) {
+      execute(usages);
+    }
+  }
+
+  public UnchainMover(Module targetModule, List<String> qNames, QNameIndex qNameIndex) {
     myTargetModule = targetModule;
     myQNames = qNames;
+    myQNameIndex = qNameIndex != null ? qNameIndex : new QNameIndex(targetModule.getProject());
   }
 
-  public void run() {
+  /**
+   * Creates the move processors for the packages of the classes to move.
+   *
+   * @throws UnsupportedOperationException if some of the elements to move are not top-level classes in Java files
+   */
+  public void prepare() {
     Project project = myTargetModule.getProject();
     VirtualFile[] sourceRoots = ModuleRootManager.getInstance(myTargetModule).getSourceRoots();
-
-    MultiMap<String, PsiClass> map = groupClassesByPackage(project);
+    MultiMap<String, String> map = groupQNamesByPackage();
 
     JavaRefactoringFactory factory = JavaRefactoringFactory.getInstance(project);
     for (String packageName : map.keySet()) {
       MoveDestination destination = factory.createSourceRootMoveDestination(packageName, sourceRoots[0]);
-      Collection<PsiClass> elements = map.get(packageName);
-      PsiElement[] elementArray = elements.toArray(new PsiElement[elements.size()]);
-      MoveClassesOrPackagesRefactoring refactoring = factory.createMoveClassesOrPackages(elementArray, destination);
-      refactoring.run();
+      List<String> qNames = new ArrayList<String>(map.get(packageName));
+      PsiElement[] elementArray = new PsiElement[qNames.size()];
+      for (int i = 0; i < elementArray.length; i++) {
+        elementArray[i] = myQNameIndex.findElement(qNames.get(i));
+      }
+      myProcessors.add(new BatchMoveProcessor(project, qNames, elementArray, destination));
+    }
+  }
+
+  /**
+   * Searches for the usages and conflicts of all classes to move, one package per thread. Must be called without a
+   * read action.
+   */
+  public void findUsages(final ProgressIndicator indicator) {
+    myModificationCount = getModificationCount();
+    final AtomicInteger processed = new AtomicInteger();
+    indicator.setIndeterminate(false);
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(myProcessors, indicator, false, new Processor<BatchMoveProcessor>() {
+      @Override
+      public boolean process(final BatchMoveProcessor processor) {
+        myUsages.put(processor, ApplicationManager.getApplication().runReadAction(new Computable<UsageInfo[]>() {
+          @Override
+          public UsageInfo[] compute() {
+            return processor.doFindUsages();
+          }
+        }));
+        indicator.setFraction((double) processed.incrementAndGet() / myProcessors.size());
+        return true;
+      }
+    });
+  }
+
+  /**
+   * @return false if PSI has been changed after the usages were found, so that they have to be searched again
+   */
+  public boolean isUpToDate() {
+    return getModificationCount() == myModificationCount;
+  }
+
+  private long getModificationCount() {
+    return PsiManager.getInstance(myTargetModule.getProject()).getModificationTracker().getModificationCount();
+  }
+
+  /**
+   * Returns the conflicts found by {@link #findUsages} for all packages.
+   */
+  public MultiMap<PsiElement, String> getConflicts() {
+    MultiMap<PsiElement, String> result = new MultiMap<PsiElement, String>();
+    for (BatchMoveProcessor processor : myProcessors) {
+      result.putAllValues(processor.myConflicts);
+    }
+    return result;
+  }
+
+  /**
+   * Moves the classes using the usages found by {@link #findUsages}. Must be called in a command on the EDT, without a
+   * write action: every package is moved by its processor in a write action of its own. The usages of all packages
+   * were found before anything was moved, so if moving an earlier package has invalidated some usages of a later one,
+   * for example by rewriting the imports of a file containing them, the move stops before that package. The usages
+   * are not searched for again here, because that would block the EDT and skip the conflict check; instead, the
+   * caller should find the usages and conflicts of the remaining classes with a new mover.
+   *
+   * @return the qnames of the classes that haven't been moved, empty if all of them have been moved
+   */
+  public List<String> performMove() {
+    for (int i = 0; i < myProcessors.size(); i++) {
+      BatchMoveProcessor processor = myProcessors.get(i);
+      UsageInfo[] usages = myUsages.get(processor);
+      if (usages == null || !areValid(usages)) {
+        List<String> remaining = new ArrayList<String>();
+        for (BatchMoveProcessor notMoved : myProcessors.subList(i, myProcessors.size())) {
+          remaining.addAll(notMoved.myQNames);
+        }
+        return remaining;
+      }
+      processor.doMove(usages);
+    }
+    return Collections.emptyList();
+  }
+
+  private static boolean areValid(UsageInfo[] usages) {
+    for (UsageInfo usage : usages) {
+      if (!usage.isValid()) {
+        return false;
+      }
     }
+    return true;
   }
 
-  private MultiMap<String, PsiClass> groupClassesByPackage(Project project) {
-    MultiMap<String, PsiClass> map = new MultiMap<String, PsiClass>();
+  private MultiMap<String, String> groupQNamesByPackage() {
+    MultiMap<String, String> map = new MultiMap<String, String>();
     for (String qName : myQNames) {
-      PsiElement psiElement = PsiQNames.findElementByQName(project, qName);
+      PsiElement psiElement = myQNameIndex.findElement(qName);
       if (!(psiElement instanceof PsiClass)) {
         throw new UnsupportedOperationException("Moving is only supported for classes");
       }
@@ -71,7 +216,7 @@ public class UnchainMover {
         throw new UnsupportedOperationException("Class not in a Java file");
       }
       PsiJavaFile javaFile = (PsiJavaFile) psiClass.getContainingFile();
-      map.putValue(javaFile.getPackageName(), psiClass);
+      map.putValue(javaFile.getPackageName(), qName);
     }
     return map;
   }
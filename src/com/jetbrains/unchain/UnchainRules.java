@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain;
+
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiMember;
+import com.intellij.psi.PsiModifier;
+import com.intellij.psi.util.PsiTreeUtil;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * User-specified rules for the analysis: classes which are never acceptable as dependencies, and classes which are
+ * always moved as a whole. The rules are compiled into {@link ClassPatternSet}s when they are set.
+ *
+ * @author yole
+ */
+public class UnchainRules {
+  private ClassPatternSet myUnwantedDependencies = new ClassPatternSet(Collections.<String>emptyList());
+  private ClassPatternSet myForcedMerges = new ClassPatternSet(Collections.<String>emptyList());
+
+  public void setUnwantedDependencies(List<String> unwantedDependencies) {
+    myUnwantedDependencies = new ClassPatternSet(unwantedDependencies);
+  }
+
+  public void setForcedMerges(List<String> forcedMerges) {
+    myForcedMerges = new ClassPatternSet(forcedMerges);
+  }
+
+  /**
+   * Returns the element which needs to be analyzed when the given dependency in the source module is reached:
+   * the dependency itself for static members, its class for instance members and forced merges.
+   */
+  public PsiElement getElementToAnalyze(PsiElement dependency) {
+    if (dependency instanceof PsiMember && isForcedMerge(((PsiMember) dependency))) {
+      return PsiTreeUtil.getTopmostParentOfType(dependency, PsiClass.class);
+    }
+    if (isNonStaticMember(dependency)) {
+      return ((PsiMember) dependency).getContainingClass();
+    }
+    return dependency;
+  }
+
+  public static PsiElement getDependencyClass(PsiElement dependency) {
+    if (dependency instanceof PsiMember) {
+      while (((PsiMember) dependency).getContainingClass() != null) {
+        dependency = ((PsiMember) dependency).getContainingClass();
+      }
+    }
+    return dependency;
+  }
+
+  public boolean isUnwantedDependency(PsiElement dependency) {
+    if (myUnwantedDependencies.isEmpty()) {
+      return false;
+    }
+    PsiClass psiClass = PsiTreeUtil.getParentOfType(dependency, PsiClass.class, false);
+    while (psiClass != null) {
+      if (myUnwantedDependencies.containsClassName(psiClass.getQualifiedName())) {
+        return true;
+      }
+      psiClass = PsiTreeUtil.getParentOfType(psiClass, PsiClass.class);
+    }
+    return myUnwantedDependencies.matchesLocation(dependency);
+  }
+
+  private boolean isNonStaticMember(PsiElement dependency) {
+    if (dependency instanceof PsiMember) {
+      PsiMember member = (PsiMember) dependency;
+      PsiClass containingClass = member.getContainingClass();
+      return containingClass != null && (isForcedMerge(containingClass) || !member.hasModifierProperty(PsiModifier.STATIC));
+    }
+    return false;
+  }
+
+  private boolean isForcedMerge(PsiMember psiMember) {
+    if (myForcedMerges.isEmpty()) {
+      return false;
+    }
+    PsiClass psiClass = PsiTreeUtil.getTopmostParentOfType(psiMember, PsiClass.class);
+    return psiClass != null && (myForcedMerges.containsClassName(psiClass.getQualifiedName()) ||
+                                myForcedMerges.matchesLocation(psiClass));
+  }
+}
@@ -16,206 +16,606 @@
 
 package com.jetbrains.unchain;
 
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ModuleRootManager;
-import com.intellij.openapi.roots.OrderEnumerator;
 import com.intellij.openapi.roots.ProjectFileIndex;
-import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
-import com.intellij.psi.search.ProjectScope;
 import com.intellij.psi.util.PsiTreeUtil;
-import com.intellij.util.PairProcessor;
+import com.intellij.util.Consumer;
 import com.intellij.util.Processor;
-import com.intellij.util.containers.MultiMap;
+import gnu.trove.TObjectIntHashMap;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Finds the dependencies that prevent moving one or more classes of a module to the target module. Several root
+ * classes, for example all classes of a package, are analyzed in one traversal with a shared set of visited members,
+ * and every bad dependency is attributed to the roots it can be reached from.
+ *
  * @author yole
  */
 public class Unchainer {
   private static final Logger LOG = Logger.getInstance(Unchainer.class);
+  private static final int ITEMS_PER_READ_ACTION = 100;
+  private static final int OFFENDER_PACKAGE_WEIGHT = 10;
+  private static final int MAX_RESTARTS = 3;
 
-  private final PsiClass myPsiClass;
+  private final Project myProject;
+  private final List<PsiClass> myRoots;
+  private int myRootCount;
   private final Module mySourceModule;
   private final Module myTargetModule;
-  private final Set<Module> myAllowedDependencies = new HashSet<Module>();
-  private final Set<String> myVisitedNames = new HashSet<String>();
-  private final Queue<AnalysisItem> myAnalysisQueue = new ArrayDeque<AnalysisItem>();
-  private final MultiMap<PsiElement, Pair<PsiElement, List<String>>> myBadDependencies = new MultiMap<PsiElement, Pair<PsiElement, List<String>>>();
+  private final ModuleClassifier myModuleClassifier;
+  private MemberTable myMembers = new MemberTable();
+  private Queue<AnalysisItem> myAnalysisQueue = new ArrayDeque<AnalysisItem>();
+  private final Map<PsiElement, BadDependencyItem> myBadDependencies = new HashMap<PsiElement, BadDependencyItem>();
+  private CallGraph myCallGraph = new CallGraph();
+  private final AnalysisMetrics myMetrics = new AnalysisMetrics();
   private Runnable myBadDependencyFoundCallback;
-  private final List<String> myUnwantedDependencies = new ArrayList<String>();
-  private final List<String> myForcedMerges = new ArrayList<String>();
+  private Runnable myRestartListener;
+  private Consumer<BadDependencyItem> myBadDependencyListener;
+  private DependencyGraphListener myGraphListener;
+  private boolean myParallel;
+  private boolean myPrioritized;
+  private int myEnqueuedCount;
+  private int myCrossModuleReferenceCount;
+  private final TObjectIntHashMap<String> myOffenderPackages = new TObjectIntHashMap<String>();
+  private long myModificationCount;
+  private AnalysisLimits myLimits = new AnalysisLimits();
+  private long myStartTime;
+  private boolean myStopped;
+  private String myIncompleteReason;
+  private ReferenceGraph myReferenceGraph;
+  private UnchainRules myRules = new UnchainRules();
+
+  /**
+   * Thrown when PSI has changed during the run, so that the analysis is restarted instead of cancelled.
+   */
+  private static class PsiChangedException extends ProcessCanceledException {
+  }
 
-  private static class AnalysisItem {
-    private final List<String> myCallChain = new ArrayList<String>();
+  private static class AnalysisItem implements Comparable<AnalysisItem> {
+    private final CallChain myCallChain;
     private final PsiElement myElementToAnalyze;
+    private final int myPriority;
+    private final int mySequence;
 
-    private AnalysisItem(PsiElement elementToAnalyze, AnalysisItem prevItem) {
-      if (prevItem != null) {
-        myCallChain.addAll(prevItem.myCallChain);
-      }
-      myCallChain.add(PsiQNames.getQName(elementToAnalyze));
+    private AnalysisItem(PsiElement elementToAnalyze, AnalysisItem prevItem, int referenceOffset, int priority,
+                         int sequence) {
+      myCallChain = new CallChain(elementToAnalyze, prevItem != null ? prevItem.myCallChain : null, referenceOffset);
       myElementToAnalyze = elementToAnalyze;
+      myPriority = priority;
+      mySequence = sequence;
+    }
+
+    /**
+     * Higher priorities first, items with equal priority in the order they were queued.
+     */
+    @Override
+    public int compareTo(AnalysisItem o) {
+      if (myPriority != o.myPriority) {
+        return myPriority > o.myPriority ? -1 : 1;
+      }
+      return mySequence - o.mySequence;
     }
   }
 
   public Unchainer(PsiClass psiClass, Module targetModule) {
-    myPsiClass = psiClass;
-    mySourceModule = ModuleUtil.findModuleForPsiElement(psiClass);
-    myTargetModule = targetModule;
-
-    collectAllowedDependencies();
+    this(Collections.singletonList(psiClass), targetModule);
   }
 
-  private void collectAllowedDependencies() {
-    myAllowedDependencies.add(myTargetModule);
-    OrderEnumerator orderEnumerator = ModuleRootManager.getInstance(myTargetModule).orderEntries();
-    VirtualFile vFile = myPsiClass.getContainingFile().getVirtualFile();
-    if (!ProjectFileIndex.SERVICE.getInstance(myTargetModule.getProject()).isInTestSourceContent(vFile)) {
-      orderEnumerator = orderEnumerator.productionOnly();
-    }
-    orderEnumerator.recursively().forEachModule(new Processor<Module>() {
-      @Override
-      public boolean process(Module module) {
-        myAllowedDependencies.add(module);
-        return true;
-      }
-    });
+  /**
+   * @param roots the classes to move together; all of them must belong to the same module
+   */
+  public Unchainer(List<PsiClass> roots, Module targetModule) {
+    PsiClass firstRoot = roots.get(0);
+    myProject = firstRoot.getProject();
+    myRoots = roots;
+    mySourceModule = ModuleUtil.findModuleForPsiElement(firstRoot);
+    myTargetModule = targetModule;
+    myReferenceGraph = new ReferenceGraph(myProject);
+
+    VirtualFile vFile = firstRoot.getContainingFile().getVirtualFile();
+    boolean includeTests = ProjectFileIndex.SERVICE.getInstance(targetModule.getProject()).isInTestSourceContent(vFile);
+    myModuleClassifier = new ModuleClassifier(mySourceModule, targetModule, includeTests);
+    myModuleClassifier.setMetrics(myMetrics);
   }
 
   public void setBadDependencyFoundCallback(Runnable badDependencyFoundCallback) {
     myBadDependencyFoundCallback = badDependencyFoundCallback;
   }
 
+  /**
+   * Sets the consumer notified about every new bad dependency as soon as it is found, together with its call chain.
+   */
+  public void setBadDependencyListener(Consumer<BadDependencyItem> badDependencyListener) {
+    myBadDependencyListener = badDependencyListener;
+  }
+
+  /**
+   * Sets the callback notified when the analysis is restarted because PSI has changed. The bad dependencies reported
+   * before the restart are obsolete and will be reported again if they are still found.
+   */
+  public void setRestartListener(Runnable restartListener) {
+    myRestartListener = restartListener;
+  }
+
+  /**
+   * Sets the listener receiving every visited member and every followed or bad reference during the run.
+   */
+  public void setGraphListener(DependencyGraphListener graphListener) {
+    myGraphListener = graphListener;
+  }
+
+  public AnalysisMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  public void setLimits(AnalysisLimits limits) {
+    myLimits = limits;
+  }
+
+  /**
+   * @return false if the analysis was stopped or pruned by its {@link AnalysisLimits}, so that the results are partial
+   */
+  public boolean isComplete() {
+    return myIncompleteReason == null;
+  }
+
+  public String getIncompleteReason() {
+    return myIncompleteReason;
+  }
+
+  public void setParallel(boolean parallel) {
+    myParallel = parallel;
+  }
+
+  /**
+   * Visits first the members which are most likely to lead out of the source module: the ones referenced from members
+   * with many references to other modules, and the ones in packages where bad dependencies have already been found.
+   * This finds the first bad dependencies much earlier than the breadth-first order, but the chains found during the
+   * run are not necessarily the shortest ones, so {@link #getBadDependencies()} recomputes them from the call graph
+   * after the run. A prioritized run is always sequential, and it can't be combined with a depth limit, because the
+   * chain by which a member is first reached may be longer than its distance from the roots.
+   */
+  public void setPrioritized(boolean prioritized) {
+    myPrioritized = prioritized;
+  }
+
+  public boolean isPrioritized() {
+    return myPrioritized;
+  }
+
+  /**
+   * Reuses the references resolved by a previous run, so that a run with changed rules doesn't resolve anything again.
+   */
+  public void setReferenceGraph(ReferenceGraph referenceGraph) {
+    myReferenceGraph = referenceGraph;
+  }
+
+  public ReferenceGraph getReferenceGraph() {
+    return myReferenceGraph;
+  }
+
+  public void setRules(UnchainRules rules) {
+    myRules = rules;
+  }
+
   public void setUnwantedDependencies(List<String> unwantedDependencies) {
-    myUnwantedDependencies.clear();
-    myUnwantedDependencies.addAll(unwantedDependencies);
+    myRules.setUnwantedDependencies(unwantedDependencies);
   }
 
   public void setForcedMerges(List<String> forcedMerges) {
-    myForcedMerges.clear();
-    myForcedMerges.addAll(forcedMerges);
+    myRules.setForcedMerges(forcedMerges);
   }
 
+  /**
+   * Runs the analysis in a sequence of short read actions, so that it can be called from a background thread without
+   * blocking write actions. A read action is cancelled as soon as a write action is pending and is retried once the
+   * write action has finished. If PSI has been changed by then, the analysis is restarted from the roots, up to
+   * {@link #MAX_RESTARTS} times; after that, or if a root is no longer valid, it is cancelled with
+   * {@link ProcessCanceledException}. Must be called without a read action, see
+   * {@link ReadActions#runWithWriteActionPriority}.
+   */
   public void run() {
-    myAnalysisQueue.add(new AnalysisItem(myPsiClass, null));
-    while (!myAnalysisQueue.isEmpty()) {
-      AnalysisItem element = myAnalysisQueue.remove();
-      analyze(element);
+    if (myPrioritized && myLimits.getMaxDepth() > 0) {
+      throw new IllegalStateException("A prioritized analysis can't be limited by depth");
+    }
+    myStartTime = System.currentTimeMillis();
+    try {
+      for (int restarts = 0; ; restarts++) {
+        start();
+        try {
+          if (myParallel && !myPrioritized) {
+            runParallel();
+          }
+          else {
+            runSequential();
+          }
+          return;
+        }
+        catch (PsiChangedException e) {
+          if (restarts >= MAX_RESTARTS || !areRootsValid()) {
+            throw e;
+          }
+          LOG.debug("PSI changed during the analysis of " + getRootsDescription() + ", restarting");
+          reset();
+          if (myRestartListener != null) {
+            myRestartListener.run();
+          }
+        }
+      }
+    }
+    finally {
+      myMetrics.setVisitedCount(myMembers.getVisitedCount());
+      myMetrics.addPhaseTime("traversal", System.currentTimeMillis() - myStartTime);
+      myAnalysisQueue.clear();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Analysis of " + getRootsDescription() + ": " + myMetrics.getSummary());
+      }
     }
   }
 
-  private void analyze(final AnalysisItem item) {
-    String qName = PsiQNames.getQName(item.myElementToAnalyze);
-    if (myVisitedNames.contains(qName)) {
-      return;
+  private void start() {
+    myModificationCount = getModificationCount();
+    if (myPrioritized) {
+      myAnalysisQueue = new PriorityQueue<AnalysisItem>();
     }
-    myVisitedNames.add(qName);
-
-    processDependencies(item.myElementToAnalyze, new PairProcessor<PsiElement, PsiElement>() {
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
-      public boolean process(PsiElement referencingElement, PsiElement dependency) {
-        Module module = ModuleUtil.findModuleForPsiElement(dependency);
-        if (module != null && (module != mySourceModule && !myAllowedDependencies.contains(module) ||
-            isUnwantedDependency(dependency))) {
-          if (dependency instanceof PsiMember) {
-            while (((PsiMember) dependency).getContainingClass() != null) {
-              dependency = ((PsiMember) dependency).getContainingClass();
-            }
+      public void run() {
+        for (PsiClass root : myRoots) {
+          if (myMembers.markEnqueued(myMembers.getId(root))) {
+            myAnalysisQueue.add(new AnalysisItem(root, null, -1, 0, myEnqueuedCount++));
           }
-          if (myBadDependencyFoundCallback != null) {
-            myBadDependencyFoundCallback.run();
-          }
-          myBadDependencies.putValue(dependency, Pair.create(referencingElement, item.myCallChain));
         }
-        else if (module == mySourceModule) {
-          PsiElement toOffer = dependency;
-          if (dependency instanceof PsiMember && isForcedMerge(((PsiMember) dependency))) {
-            toOffer = PsiTreeUtil.getTopmostParentOfType(dependency, PsiClass.class);
-          }
-          else if (isNonStaticMember(dependency)) {
-            toOffer = ((PsiMember) dependency).getContainingClass();
+      }
+    });
+    myRootCount = myAnalysisQueue.size();
+  }
+
+  private boolean areRootsValid() {
+    return ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        for (PsiClass root : myRoots) {
+          if (!root.isValid()) {
+            return false;
           }
-          myAnalysisQueue.offer(new AnalysisItem(toOffer, item));
         }
         return true;
       }
     });
   }
 
-  private boolean isUnwantedDependency(PsiElement dependency) {
-    if (myUnwantedDependencies.size() == 0) {
-      return false;
+  /**
+   * Discards everything found before PSI was changed. The time budget still counts from the start of the first run.
+   */
+  private void reset() {
+    myMembers = new MemberTable();
+    myCallGraph = new CallGraph();
+    myBadDependencies.clear();
+    myOffenderPackages.clear();
+    myAnalysisQueue.clear();
+    myEnqueuedCount = 0;
+    myCrossModuleReferenceCount = 0;
+    myStopped = false;
+    myIncompleteReason = null;
+    if (!myReferenceGraph.isUpToDate()) {
+      myReferenceGraph = new ReferenceGraph(myProject);
     }
-    PsiClass psiClass = PsiTreeUtil.getParentOfType(dependency, PsiClass.class, false);
-    while (psiClass != null) {
-      if (myUnwantedDependencies.contains(psiClass.getQualifiedName())) {
-        return true;
+  }
+
+  private void runSequential() {
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    final boolean[] psiChanged = new boolean[1];
+    while (!myAnalysisQueue.isEmpty() && !myStopped) {
+      // exceptions thrown from the step are treated as a cancellation, so a PSI change is reported in a flag
+      ReadActions.runWithWriteActionPriority(new Runnable() {
+        @Override
+        public void run() {
+          if (getModificationCount() != myModificationCount) {
+            psiChanged[0] = true;
+            return;
+          }
+          for (int i = 0; i < ITEMS_PER_READ_ACTION && !myAnalysisQueue.isEmpty() && !myStopped; i++) {
+            if (indicator != null) {
+              indicator.checkCanceled();
+            }
+            ProgressManager.checkCanceled();
+            AnalysisItem item = myAnalysisQueue.remove();
+            try {
+              analyze(item);
+            }
+            catch (ProcessCanceledException e) {
+              if (!myMembers.isVisited(item.myElementToAnalyze)) {
+                requeue(item);
+              }
+              throw e;
+            }
+          }
+        }
+      });
+      if (psiChanged[0]) {
+        throw new PsiChangedException();
       }
-      psiClass = PsiTreeUtil.getParentOfType(psiClass, PsiClass.class);
     }
-    return false;
   }
 
-  private boolean isNonStaticMember(PsiElement dependency) {
-    if (dependency instanceof PsiMember) {
-      PsiMember member = (PsiMember) dependency;
-      PsiClass containingClass = member.getContainingClass();
-      return containingClass != null && (isForcedMerge(containingClass) || !member.hasModifierProperty(PsiModifier.STATIC));
+  /**
+   * Puts back an item whose analysis was cancelled, at the head of a breadth-first queue so that the order of the
+   * levels is kept.
+   */
+  private void requeue(AnalysisItem item) {
+    if (myAnalysisQueue instanceof Deque) {
+      ((Deque<AnalysisItem>) myAnalysisQueue).addFirst(item);
+    }
+    else {
+      myAnalysisQueue.add(item);
     }
-    return false;
   }
 
-  private boolean isForcedMerge(PsiMember psiMember) {
-    PsiClass psiClass = PsiTreeUtil.getTopmostParentOfType(psiMember, PsiClass.class);
-    return psiClass != null && myForcedMerges.contains(psiClass.getQualifiedName());
+  private long getModificationCount() {
+    return PsiManager.getInstance(myProject).getModificationTracker().getModificationCount();
   }
 
-  private void processDependencies(PsiElement element, final PairProcessor<PsiElement, PsiElement> processor) {
-    element.accept(new JavaRecursiveElementVisitor() {
-      @Override
-      public void visitElement(PsiElement element) {
-        super.visitElement(element);
-        for (PsiReference ref: element.getReferences()) {
-          processReference(element, ref);
+  private void checkUpToDate() {
+    if (getModificationCount() != myModificationCount) {
+      throw new PsiChangedException();
+    }
+  }
+
+  /**
+   * Processes the queue level by level: references of all items in the current BFS level are resolved concurrently,
+   * then the results are applied on the calling thread in queue order. This visits members, records bad dependencies
+   * and builds call chains in exactly the same order as the sequential run. Every member is queued only once, so the
+   * items of a level are always distinct and not yet visited. The workers stop taking items as soon as the PSI has
+   * changed or the time budget is exhausted; the apply phase then restarts or stops the analysis.
+   */
+  private void runParallel() {
+    while (!myAnalysisQueue.isEmpty() && !myStopped) {
+      final List<AnalysisItem> level = new ArrayList<AnalysisItem>(myAnalysisQueue);
+      myAnalysisQueue.clear();
+
+      long resolveStart = System.currentTimeMillis();
+      final Map<AnalysisItem, List<Dependency>> resolved =
+          new ConcurrentHashMap<AnalysisItem, List<Dependency>>();
+      ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+      JobLauncher.getInstance().invokeConcurrentlyUnderProgress(level, indicator, false, new Processor<AnalysisItem>() {
+        @Override
+        public boolean process(final AnalysisItem item) {
+          if (isTimeBudgetExhausted()) {
+            return false;
+          }
+          List<Dependency> dependencies = ApplicationManager.getApplication().runReadAction(new Computable<List<Dependency>>() {
+            @Override
+            public List<Dependency> compute() {
+              if (getModificationCount() != myModificationCount || !item.myElementToAnalyze.isValid()) {
+                return null;
+              }
+              return myReferenceGraph.getDependencies(item.myElementToAnalyze, myMetrics);
+            }
+          });
+          if (dependencies == null) {
+            return false;
+          }
+          resolved.put(item, dependencies);
+          return true;
         }
-      }
+      });
+      myMetrics.addPhaseTime("concurrent resolve", System.currentTimeMillis() - resolveStart);
 
-      private void processReference(PsiElement element, PsiReference ref) {
-        PsiElement result = ref.resolve();
-        if ((result instanceof PsiClass || result instanceof PsiMember) && !(result instanceof PsiTypeParameter)) {
-          processor.process(element, result);
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        @Override
+        public void run() {
+          checkUpToDate();
+          for (AnalysisItem item : level) {
+            List<Dependency> dependencies = resolved.get(item);
+            if (dependencies != null) {
+              analyze(item, dependencies);
+            }
+          }
         }
+      });
+    }
+  }
+
+  private void analyze(AnalysisItem item) {
+    if (myMembers.isVisited(item.myElementToAnalyze)) {
+      myMetrics.duplicateEnqueueSkipped();
+      return;
+    }
+    analyze(item, myReferenceGraph.getDependencies(item.myElementToAnalyze, myMetrics));
+  }
+
+  private void analyze(AnalysisItem item, List<Dependency> dependencies) {
+    int id = myMembers.getId(item.myElementToAnalyze);
+    if (myStopped || isBudgetExhausted() || !myMembers.markVisited(id)) {
+      return;
+    }
+    if (myGraphListener != null) {
+      CallChain parent = item.myCallChain.getParent();
+      myGraphListener.memberVisited(PsiQNames.getQName(item.myElementToAnalyze), mySourceModule.getName(),
+                                    parent != null ? PsiQNames.getQName(parent.getElement()) : null);
+    }
+    if (myPrioritized) {
+      myCrossModuleReferenceCount = countCrossModuleReferences(dependencies);
+    }
+    for (Dependency dependency : dependencies) {
+      if (myStopped) {
+        break;
       }
+      processDependency(item, id, dependency);
+    }
+  }
 
-      @Override
-      public void visitReferenceExpression(PsiReferenceExpression expression) {
-        PsiExpression qualifierExpression = expression.getQualifierExpression();
-        if (qualifierExpression instanceof PsiJavaCodeReferenceElement && qualifierExpression.getReference().resolve() instanceof PsiClass) {
-          processReference(expression, expression);
+  private int countCrossModuleReferences(List<Dependency> dependencies) {
+    int count = 0;
+    for (Dependency dependency : dependencies) {
+      ModuleClassifier.Kind kind = myModuleClassifier.getKind(dependency.getTarget());
+      if (kind == ModuleClassifier.Kind.ALLOWED || kind == ModuleClassifier.Kind.FORBIDDEN) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Estimates how likely the analysis of the element is to find a bad dependency soon. Only used in prioritized runs.
+   */
+  private int getPriority(PsiElement element) {
+    String packageName = getPackageName(element);
+    int offenderCount = packageName != null ? myOffenderPackages.get(packageName) : 0;
+    return myCrossModuleReferenceCount + OFFENDER_PACKAGE_WEIGHT * offenderCount;
+  }
+
+  private static String getPackageName(PsiElement element) {
+    PsiFile file = element.getContainingFile();
+    return file instanceof PsiClassOwner ? ((PsiClassOwner) file).getPackageName() : null;
+  }
+
+  private boolean isBudgetExhausted() {
+    int maxNodes = myLimits.getMaxNodes();
+    if (maxNodes > 0 && myMembers.getVisitedCount() >= maxNodes) {
+      stop("Stopped after analyzing " + maxNodes + " members");
+      return true;
+    }
+    if (isTimeBudgetExhausted()) {
+      stop("Stopped after " + myLimits.getTimeBudgetMillis() + " ms");
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Checks the time budget without stopping the analysis, so that it can be called from the workers of a parallel run.
+   */
+  private boolean isTimeBudgetExhausted() {
+    long timeBudget = myLimits.getTimeBudgetMillis();
+    return timeBudget > 0 && System.currentTimeMillis() - myStartTime > timeBudget;
+  }
+
+  private void stop(String reason) {
+    myStopped = true;
+    myIncompleteReason = reason;
+    myAnalysisQueue.clear();
+  }
+
+  private void processDependency(AnalysisItem item, int itemId, Dependency reference) {
+    myMetrics.referenceVisited();
+    PsiElement dependency = reference.getTarget();
+    ModuleClassifier.Kind kind = myModuleClassifier.getKind(dependency);
+    if (kind != ModuleClassifier.Kind.LIBRARY && (kind == ModuleClassifier.Kind.FORBIDDEN || myRules.isUnwantedDependency(dependency))) {
+      dependency = UnchainRules.getDependencyClass(dependency);
+      if (myBadDependencyFoundCallback != null) {
+        myBadDependencyFoundCallback.run();
+      }
+      int offset = reference.getOffset();
+      if (myGraphListener != null) {
+        Module module = ModuleUtil.findModuleForPsiElement(dependency);
+        myGraphListener.dependencyFound(PsiQNames.getQName(item.myElementToAnalyze), PsiQNames.getQName(dependency),
+                                        module != null ? module.getName() : null, offset, true);
+      }
+      myCallGraph.addBadUsage(PsiQNames.getQName(dependency), itemId, offset,
+                              offset < 0 ? PsiQNames.getQName(reference.getOwner()) : null);
+      if (myPrioritized) {
+        String packageName = getPackageName(item.myElementToAnalyze);
+        if (packageName != null) {
+          myOffenderPackages.adjustOrPutValue(packageName, 1, 1);
         }
-        else {
-          visitElement(expression);
+      }
+      if (myBadDependencies.containsKey(dependency)) {
+        return;
+      }
+      BadDependencyItem badDependencyItem = createBadDependencyItem(dependency, reference, item.myCallChain);
+      myBadDependencies.put(dependency, badDependencyItem);
+      if (myBadDependencyListener != null) {
+        myBadDependencyListener.consume(badDependencyItem);
+      }
+      int maxBadDependencies = myLimits.getMaxBadDependencies();
+      if (maxBadDependencies > 0 && getBadDependencyCount() >= maxBadDependencies) {
+        stop("Stopped after finding " + maxBadDependencies + " bad dependencies");
+      }
+    }
+    else if (kind == ModuleClassifier.Kind.SOURCE) {
+      PsiElement elementToAnalyze = myRules.getElementToAnalyze(dependency);
+      int targetId = myMembers.getId(elementToAnalyze);
+      myCallGraph.addEdge(itemId, targetId, reference.getOffset());
+      if (myGraphListener != null) {
+        myGraphListener.dependencyFound(PsiQNames.getQName(item.myElementToAnalyze), PsiQNames.getQName(elementToAnalyze),
+                                        mySourceModule.getName(), reference.getOffset(), false);
+      }
+      int maxDepth = myLimits.getMaxDepth();
+      if (maxDepth > 0 && item.myCallChain.getLength() >= maxDepth) {
+        if (myIncompleteReason == null) {
+          myIncompleteReason = "Call chains longer than " + maxDepth + " were not followed";
         }
+        return;
       }
-    });
+      if (!myMembers.markEnqueued(targetId)) {
+        myMetrics.duplicateEnqueueSkipped();
+        return;
+      }
+      int priority = myPrioritized ? getPriority(elementToAnalyze) : 0;
+      myAnalysisQueue.offer(new AnalysisItem(elementToAnalyze, item, reference.getOffset(), priority, myEnqueuedCount++));
+      myMetrics.updateQueueSize(myAnalysisQueue.size());
+    }
+  }
+
+  private String getRootsDescription() {
+    String first = myRoots.get(0).getQualifiedName();
+    return myRoots.size() > 1 ? first + " and " + (myRoots.size() - 1) + " more classes" : first;
+  }
+
+  /**
+   * Returns the number of distinct root classes of the analysis.
+   */
+  public int getRootCount() {
+    return myRootCount;
+  }
+
+  public int getVisitedMemberCount() {
+    return myMembers.getVisitedCount();
   }
 
   public int getBadDependencyCount() {
-    return myBadDependencies.keySet().size();
+    return myBadDependencies.size();
   }
 
+  /**
+   * Returns the bad dependencies sorted by qname. After a prioritized run, the call chains are replaced with the
+   * shortest ones found in the call graph; if several roots were analyzed, every item lists the roots it can be
+   * reached from. In both cases this must be called in a read action.
+   */
   public List<BadDependencyItem> getBadDependencies() {
-    List<BadDependencyItem> result = new ArrayList<BadDependencyItem>();
-    for (Map.Entry<PsiElement, Collection<Pair<PsiElement, List<String>>>> entry : myBadDependencies.entrySet()) {
-      Pair<PsiElement, List<String>> pair = entry.getValue().iterator().next();
-      PsiElement usage = pair.first;
-      result.add(new BadDependencyItem(PsiQNames.getQName(entry.getKey()), usage, pair.second));
+    long start = System.currentTimeMillis();
+    List<BadDependencyItem> result = new ArrayList<BadDependencyItem>(myBadDependencies.size());
+    if (myPrioritized) {
+      freezeCallGraph();
+      for (BadDependencyItem item : myBadDependencies.values()) {
+        List<BadDependencyItem> chains = myCallGraph.getCallChains(item, 1);
+        result.add(chains.isEmpty() ? item : chains.get(0));
+      }
+    }
+    else {
+      result.addAll(myBadDependencies.values());
+    }
+    if (myRootCount > 1) {
+      freezeCallGraph();
+      for (int i = 0; i < result.size(); i++) {
+        BadDependencyItem item = result.get(i);
+        result.set(i, item.withRoots(myCallGraph.getReachingRoots(item.toString())));
+      }
     }
     Collections.sort(result, new Comparator<BadDependencyItem>() {
       @Override
@@ -223,64 +623,107 @@ public class Unchainer {
         return badDependencyItem.toString().compareTo(badDependencyItem2.toString());
       }
     });
+    myMetrics.addPhaseTime("bad dependencies", System.currentTimeMillis() - start);
     return result;
   }
 
+  /**
+   * Only the first usage of a bad dependency is kept, and it is converted to qnames and offsets right away, so that the
+   * results don't retain any PSI after the analysis is finished.
+   */
+  private static BadDependencyItem createBadDependencyItem(PsiElement dependency, Dependency usage, CallChain callChain) {
+    PsiElement owner = usage.getOwner();
+    String ownerQName = usage.getOffset() < 0 ? PsiQNames.getQName(owner) : null;
+    VirtualFile file = owner.getContainingFile().getVirtualFile();
+    return new BadDependencyItem(PsiQNames.getQName(dependency), callChain.toQNames(), callChain.toReferenceOffsets(),
+                                 ownerQName, file, usage.getOffset());
+  }
+
+  /**
+   * Lists the visited members in qname order, replacing the members of classes which have been visited completely
+   * with the class itself.
+   */
   public List<String> getGoodDependencies() {
+    long start = System.currentTimeMillis();
     List<String> result = new ArrayList<String>();
-    Set<String> mergedClasses = new HashSet<String>();
-    Set<String> partialClasses = new HashSet<String>();
-    ArrayList<String> sortedNames = new ArrayList<String>(myVisitedNames);
-    Collections.sort(sortedNames);
-    for (String qName : sortedNames) {
+    Set<String> added = new HashSet<String>();
+    Map<String, Boolean> fullyVisitedClasses = new HashMap<String, Boolean>();
+    for (Map.Entry<String, PsiElement> entry : myMembers.getVisitedMembersByQName().entrySet()) {
+      String qName = entry.getKey();
       if (qName.contains("#") || qName.contains("@")) {
         String className = PsiQNames.extractClassName(qName);
-        if (mergedClasses.contains(className) || result.contains(className)) {
+        if (added.contains(className)) {
           continue;
         }
-        if (!partialClasses.contains(className)) {
-          boolean seenAll = seenAllMembers(className);
-          if (seenAll) {
-            mergedClasses.add(className);
-            result.add(className);
-            continue;
-          }
-          partialClasses.add(className);
+        Boolean fullyVisited = fullyVisitedClasses.get(className);
+        if (fullyVisited == null) {
+          fullyVisited = isFullyVisited(entry.getValue(), className);
+          fullyVisitedClasses.put(className, fullyVisited);
+        }
+        if (fullyVisited) {
+          result.add(className);
+          added.add(className);
+          continue;
         }
       }
       else {
         int dot = qName.lastIndexOf('.');
-        if (dot >= 0 && result.contains(qName.substring(0, dot))) {
+        if (dot >= 0 && added.contains(qName.substring(0, dot))) {
           continue;
         }
       }
       result.add(qName);
+      added.add(qName);
     }
+    myMetrics.addPhaseTime("good dependencies", System.currentTimeMillis() - start);
     return result;
   }
 
-  private boolean seenAllMembers(String className) {
-    Project project = myTargetModule.getProject();
-    PsiClass aClass = JavaPsiFacade.getInstance(project).findClass(className, ProjectScope.getProjectScope(project));
-    if (aClass == null) {
-      LOG.error("Could not find class " + className);
-      return false;
-    }
-    for (PsiMethod psiMethod : aClass.getMethods()) {
-      if (!psiMethod.isConstructor() && !myVisitedNames.contains(PsiQNames.getQName(psiMethod))) {
-        return false;
+  /**
+   * Creates pointers to the visited members and their classes, so that the elements shown in the results can be found
+   * without resolving their qnames. Must be called in a read action.
+   */
+  public QNameIndex createQNameIndex() {
+    long start = System.currentTimeMillis();
+    QNameIndex index = new QNameIndex(myProject);
+    for (Map.Entry<String, PsiElement> entry : myMembers.getVisitedMembersByQName().entrySet()) {
+      index.add(entry.getKey(), entry.getValue());
+      PsiClass aClass = PsiTreeUtil.getParentOfType(entry.getValue(), PsiClass.class);
+      while (aClass != null && !index.contains(PsiQNames.getQName(aClass))) {
+        index.add(PsiQNames.getQName(aClass), aClass);
+        aClass = PsiTreeUtil.getParentOfType(aClass, PsiClass.class);
       }
     }
-    for (PsiField field : aClass.getFields()) {
-      if (!myVisitedNames.contains(PsiQNames.getQName(field))) {
-        return false;
-      }
+    myMetrics.addPhaseTime("qname index", System.currentTimeMillis() - start);
+    return index;
+  }
+
+  /**
+   * Returns the graph of the references between the visited members, which is used to find all call chains leading
+   * to a bad dependency. Must be called in a read action.
+   */
+  public CallGraph createCallGraph() {
+    freezeCallGraph();
+    return myCallGraph;
+  }
+
+  private void freezeCallGraph() {
+    if (!myCallGraph.isFrozen()) {
+      long start = System.currentTimeMillis();
+      myCallGraph.freeze(myMembers, myRootCount);
+      myMetrics.addPhaseTime("call graph", System.currentTimeMillis() - start);
     }
-    for (PsiClass psiClass : aClass.getInnerClasses()) {
-      if (!myVisitedNames.contains(PsiQNames.getQName(psiClass))) {
-        return false;
-      }
+  }
+
+  private boolean isFullyVisited(PsiElement member, String className) {
+    PsiClass aClass = PsiTreeUtil.getParentOfType(member, PsiClass.class, false);
+    while (aClass != null && !className.equals(aClass.getQualifiedName())) {
+      aClass = PsiTreeUtil.getParentOfType(aClass, PsiClass.class);
+    }
+    if (aClass == null) {
+      LOG.error("Could not find class " + className);
+      return false;
     }
-    return true;
+    return myMembers.isFullyVisited(aClass);
   }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.export;
+
+import com.intellij.util.io.IOUtil;
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.*;
+
+/**
+ * Writes the graph as a sequence of binary records. Every string is written once, as a STRING record which implicitly
+ * gets the next string id; other records refer to strings by id. Record layouts (all numbers are big-endian ints):
+ * <pre>
+ * STRING: 1, UTF string
+ * NODE:   2, node id, qname string id, module string id or -1
+ * VISIT:  3, node id, call chain parent node id or -1
+ * EDGE:   4, source node id, target node id, offset or -1, 1 if the dependency is bad or 0
+ * </pre>
+ *
+ * @author yole
+ */
+class BinaryGraphExporter extends GraphExporter {
+  private static final int MAGIC = 0x554E4348;
+  private static final int VERSION = 1;
+  private static final byte STRING = 1;
+  private static final byte NODE = 2;
+  private static final byte VISIT = 3;
+  private static final byte EDGE = 4;
+
+  private final DataOutputStream myOutput;
+  private final TObjectIntHashMap<String> myStringIds = new TObjectIntHashMap<String>();
+
+  BinaryGraphExporter(File file) throws IOException {
+    myOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    myOutput.writeInt(MAGIC);
+    myOutput.writeInt(VERSION);
+  }
+
+  private int getStringId(String s) throws IOException {
+    if (s == null) {
+      return -1;
+    }
+    if (myStringIds.containsKey(s)) {
+      return myStringIds.get(s);
+    }
+    int id = myStringIds.size();
+    myStringIds.put(s, id);
+    myOutput.writeByte(STRING);
+    IOUtil.writeUTF(myOutput, s);
+    return id;
+  }
+
+  @Override
+  protected void declareNode(int id, String qName, String moduleName) throws IOException {
+    int qNameId = getStringId(qName);
+    int moduleId = getStringId(moduleName);
+    myOutput.writeByte(NODE);
+    myOutput.writeInt(id);
+    myOutput.writeInt(qNameId);
+    myOutput.writeInt(moduleId);
+  }
+
+  @Override
+  protected void writeNode(int id, int parentId) throws IOException {
+    myOutput.writeByte(VISIT);
+    myOutput.writeInt(id);
+    myOutput.writeInt(parentId);
+  }
+
+  @Override
+  protected void writeEdge(int sourceId, int targetId, int offset, boolean bad) throws IOException {
+    myOutput.writeByte(EDGE);
+    myOutput.writeInt(sourceId);
+    myOutput.writeInt(targetId);
+    myOutput.writeInt(offset);
+    myOutput.writeByte(bad ? 1 : 0);
+  }
+
+  @Override
+  protected void doClose() throws IOException {
+    myOutput.close();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.export;
+
+import java.io.*;
+
+/**
+ * Writes the graph in the Graphviz DOT format. Bad dependencies are drawn in red, and the edges of the call chains
+ * found by the analysis are drawn in bold.
+ *
+ * @author yole
+ */
+class DotGraphExporter extends GraphExporter {
+  private final Writer myWriter;
+
+  DotGraphExporter(File file) throws IOException {
+    myWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    myWriter.write("digraph unchain {\n");
+  }
+
+  @Override
+  protected void declareNode(int id, String qName, String moduleName) throws IOException {
+    myWriter.write("  n" + id + " [label=" + quote(qName));
+    if (moduleName != null) {
+      myWriter.write(", module=" + quote(moduleName));
+    }
+    myWriter.write("];\n");
+  }
+
+  @Override
+  protected void writeNode(int id, int parentId) throws IOException {
+    if (parentId >= 0) {
+      myWriter.write("  n" + parentId + " -> n" + id + " [style=bold, chain=true];\n");
+    }
+  }
+
+  @Override
+  protected void writeEdge(int sourceId, int targetId, int offset, boolean bad) throws IOException {
+    myWriter.write("  n" + sourceId + " -> n" + targetId + " [offset=" + offset + (bad ? ", color=red" : "") + "];\n");
+  }
+
+  @Override
+  protected void doClose() throws IOException {
+    try {
+      myWriter.write("}\n");
+    }
+    finally {
+      myWriter.close();
+    }
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
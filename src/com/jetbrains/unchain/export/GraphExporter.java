@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.export;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.jetbrains.unchain.DependencyGraphListener;
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base class for writers which stream the traversed dependency graph to a file without keeping it in memory. Only the
+ * ids of the node names are retained. The first I/O error stops the export and is rethrown from {@link #close()}.
+ *
+ * @author yole
+ */
+public abstract class GraphExporter implements DependencyGraphListener {
+  private final TObjectIntHashMap<String> myNodeIds = new TObjectIntHashMap<String>();
+  private IOException myError;
+
+  /**
+   * Creates an exporter for the format matching the file extension: DOT for .dot, GraphML for .graphml, and the
+   * compact binary format otherwise.
+   */
+  public static GraphExporter create(File file) throws IOException {
+    String extension = FileUtil.getExtension(file.getName());
+    if (extension.equals("dot")) {
+      return new DotGraphExporter(file);
+    }
+    if (extension.equals("graphml")) {
+      return new GraphMLExporter(file);
+    }
+    return new BinaryGraphExporter(file);
+  }
+
+  @Override
+  public void memberVisited(String qName, String moduleName, String parentQName) {
+    if (myError != null) {
+      return;
+    }
+    try {
+      writeNode(getNodeId(qName, moduleName), parentQName != null ? getNodeId(parentQName, moduleName) : -1);
+    }
+    catch (IOException e) {
+      myError = e;
+    }
+  }
+
+  @Override
+  public void dependencyFound(String sourceQName, String targetQName, String targetModuleName, int offset, boolean bad) {
+    if (myError != null) {
+      return;
+    }
+    try {
+      writeEdge(getNodeId(sourceQName, null), getNodeId(targetQName, targetModuleName), offset, bad);
+    }
+    catch (IOException e) {
+      myError = e;
+    }
+  }
+
+  /**
+   * Returns the id of the node with the given name, declaring the node if it hasn't been seen before.
+   */
+  private int getNodeId(String qName, String moduleName) throws IOException {
+    if (myNodeIds.containsKey(qName)) {
+      return myNodeIds.get(qName);
+    }
+    int id = myNodeIds.size();
+    myNodeIds.put(qName, id);
+    declareNode(id, qName, moduleName);
+    return id;
+  }
+
+  protected abstract void declareNode(int id, String qName, String moduleName) throws IOException;
+
+  protected abstract void writeNode(int id, int parentId) throws IOException;
+
+  protected abstract void writeEdge(int sourceId, int targetId, int offset, boolean bad) throws IOException;
+
+  protected abstract void doClose() throws IOException;
+
+  public void close() throws IOException {
+    try {
+      doClose();
+    }
+    finally {
+      if (myError != null) {
+        throw myError;
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.export;
+
+import com.intellij.openapi.util.text.StringUtil;
+
+import java.io.*;
+
+/**
+ * Writes the graph in the GraphML format. Call chain edges found by the analysis are marked with the "chain" attribute.
+ *
+ * @author yole
+ */
+class GraphMLExporter extends GraphExporter {
+  private final Writer myWriter;
+
+  GraphMLExporter(File file) throws IOException {
+    myWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    myWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    myWriter.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+    myWriter.write("  <key id=\"qName\" for=\"node\" attr.name=\"qName\" attr.type=\"string\"/>\n");
+    myWriter.write("  <key id=\"module\" for=\"node\" attr.name=\"module\" attr.type=\"string\"/>\n");
+    myWriter.write("  <key id=\"offset\" for=\"edge\" attr.name=\"offset\" attr.type=\"int\"/>\n");
+    myWriter.write("  <key id=\"bad\" for=\"edge\" attr.name=\"bad\" attr.type=\"boolean\"/>\n");
+    myWriter.write("  <key id=\"chain\" for=\"edge\" attr.name=\"chain\" attr.type=\"boolean\"/>\n");
+    myWriter.write("  <graph edgedefault=\"directed\">\n");
+  }
+
+  @Override
+  protected void declareNode(int id, String qName, String moduleName) throws IOException {
+    myWriter.write("    <node id=\"n" + id + "\"><data key=\"qName\">" + StringUtil.escapeXml(qName) + "</data>");
+    if (moduleName != null) {
+      myWriter.write("<data key=\"module\">" + StringUtil.escapeXml(moduleName) + "</data>");
+    }
+    myWriter.write("</node>\n");
+  }
+
+  @Override
+  protected void writeNode(int id, int parentId) throws IOException {
+    if (parentId >= 0) {
+      myWriter.write("    <edge source=\"n" + parentId + "\" target=\"n" + id + "\"><data key=\"chain\">true</data></edge>\n");
+    }
+  }
+
+  @Override
+  protected void writeEdge(int sourceId, int targetId, int offset, boolean bad) throws IOException {
+    myWriter.write("    <edge source=\"n" + sourceId + "\" target=\"n" + targetId + "\"><data key=\"offset\">" + offset +
+                   "</data><data key=\"bad\">" + bad + "</data></edge>\n");
+  }
+
+  @Override
+  protected void doClose() throws IOException {
+    try {
+      myWriter.write("  </graph>\n</graphml>\n");
+    }
+    finally {
+      myWriter.close();
+    }
+  }
+}
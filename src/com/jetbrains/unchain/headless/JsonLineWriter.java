@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.headless;
+
+import com.jetbrains.unchain.BadDependencyItem;
+import com.jetbrains.unchain.MovabilityReport;
+import com.jetbrains.unchain.TargetModuleReport;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Writes analysis results as newline-delimited JSON, one object per line, flushing after every line so that results
+ * can be consumed while the analysis is still running.
+ *
+ * @author yole
+ */
+class JsonLineWriter {
+  private final PrintWriter myWriter;
+
+  JsonLineWriter(PrintWriter writer) {
+    myWriter = writer;
+  }
+
+  public void writeBadDependency(String root, BadDependencyItem item) {
+    StringBuilder builder = startObject("badDependency");
+    appendField(builder, "root", root);
+    appendField(builder, "dependency", item.toString());
+    appendField(builder, "callChain", item.getCallChain());
+    if (!item.getRoots().isEmpty()) {
+      appendField(builder, "roots", item.getRoots());
+    }
+    writeObject(builder);
+  }
+
+  /**
+   * Reports a shorter call chain for a bad dependency which has already been written.
+   */
+  public void writeCallChain(String root, BadDependencyItem item) {
+    StringBuilder builder = startObject("callChain");
+    appendField(builder, "root", root);
+    appendField(builder, "dependency", item.toString());
+    appendField(builder, "callChain", item.getCallChain());
+    writeObject(builder);
+  }
+
+  public void writeGoodDependency(String root, String qName) {
+    StringBuilder builder = startObject("goodDependency");
+    appendField(builder, "root", root);
+    appendField(builder, "qName", qName);
+    writeObject(builder);
+  }
+
+  public void writeResult(String root, int badDependencyCount, String incompleteReason) {
+    StringBuilder builder = startObject("result");
+    appendField(builder, "root", root);
+    builder.append(",\"canMove\":").append(badDependencyCount == 0 && incompleteReason == null);
+    builder.append(",\"badDependencyCount\":").append(badDependencyCount);
+    builder.append(",\"complete\":").append(incompleteReason == null);
+    if (incompleteReason != null) {
+      appendField(builder, "incompleteReason", incompleteReason);
+    }
+    writeObject(builder);
+  }
+
+  public void writeMovabilityReport(MovabilityReport report) {
+    StringBuilder builder = startObject("class");
+    appendField(builder, "root", report.getClassName());
+    builder.append(",\"canMove\":").append(report.canMove());
+    appendField(builder, "badDependencies", report.getBadDependencies());
+    appendField(builder, "closure", report.getClosure());
+    writeObject(builder);
+  }
+
+  public void writeTargetModuleReport(TargetModuleReport report) {
+    StringBuilder builder = startObject("target");
+    appendField(builder, "module", report.getModuleName());
+    builder.append(",\"canMove\":").append(report.canMove());
+    builder.append(",\"badDependencyCount\":").append(report.getBadDependencies().size());
+    appendField(builder, "badDependencies", report.getBadDependencies());
+    writeObject(builder);
+  }
+
+  /**
+   * @param cold        true for the first iteration, which runs with cold caches, false for the other iterations
+   * @param timesMillis the durations of all iterations, sorted
+   * @param itemCount   the number of items processed in one iteration, used to compute the throughput
+   */
+  public void writeBenchmark(String operation, String parameters, boolean cold, long[] timesMillis, int itemCount,
+                             long allocatedBytes, long retainedBytes) {
+    StringBuilder builder = startObject("benchmark");
+    appendField(builder, "operation", operation);
+    appendField(builder, "parameters", parameters);
+    builder.append(",\"cold\":").append(cold);
+    long median = timesMillis[timesMillis.length / 2];
+    builder.append(",\"iterations\":").append(timesMillis.length);
+    builder.append(",\"minMillis\":").append(timesMillis[0]);
+    builder.append(",\"medianMillis\":").append(median);
+    builder.append(",\"maxMillis\":").append(timesMillis[timesMillis.length - 1]);
+    builder.append(",\"items\":").append(itemCount);
+    builder.append(",\"itemsPerSecond\":").append(median > 0 ? itemCount * 1000L / median : itemCount * 1000L);
+    builder.append(",\"allocatedBytes\":").append(allocatedBytes);
+    builder.append(",\"retainedBytes\":").append(retainedBytes);
+    writeObject(builder);
+  }
+
+  public void writeError(String message) {
+    StringBuilder builder = startObject("error");
+    appendField(builder, "message", message);
+    writeObject(builder);
+  }
+
+  private static StringBuilder startObject(String type) {
+    StringBuilder builder = new StringBuilder("{\"type\":");
+    appendString(builder, type);
+    return builder;
+  }
+
+  private void writeObject(StringBuilder builder) {
+    builder.append('}');
+    myWriter.println(builder);
+    myWriter.flush();
+  }
+
+  private static void appendField(StringBuilder builder, String name, String value) {
+    builder.append(",\"").append(name).append("\":");
+    appendString(builder, value);
+  }
+
+  private static void appendField(StringBuilder builder, String name, List<String> values) {
+    builder.append(",\"").append(name).append("\":[");
+    for (int i = 0; i < values.size(); i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      appendString(builder, values.get(i));
+    }
+    builder.append(']');
+  }
+
+  private static void appendString(StringBuilder builder, String value) {
+    if (value == null) {
+      builder.append("null");
+      return;
+    }
+    builder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          builder.append("\\\"");
+          break;
+        case '\\':
+          builder.append("\\\\");
+          break;
+        case '\n':
+          builder.append("\\n");
+          break;
+        case '\r':
+          builder.append("\\r");
+          break;
+        case '\t':
+          builder.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            builder.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            builder.append(c);
+          }
+      }
+    }
+    builder.append('"');
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.headless;
+
+import com.intellij.openapi.util.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the sources of a synthetic multi-module Java project for benchmarking. Module {@code m<i>} depends on
+ * module {@code m<i-1>}; the classes of the top module also call the classes of module {@code extra}, which is not
+ * accessible from the restricted target module and so produces bad dependencies. The generated code doesn't use the
+ * JDK, so the project needs no SDK. The same parameters and seed always produce the same project.
+ *
+ * @author yole
+ */
+class SyntheticProjectGenerator {
+  static final String EXTRA_MODULE = "extra";
+  static final String ROOT_PACKAGE = "bench";
+
+  private int myModuleCount = 5;
+  private int myClassesPerModule = 200;
+  private int myMethodsPerClass = 6;
+  private int myFanOut = 3;
+  private double myLocalCallRate = 0.7;
+  private double myBadCallRate = 0.02;
+  private double myOverloadRate = 0.1;
+  private double myAnonymousClassRate = 0.05;
+  private long mySeed = 42;
+
+  private Random myRandom;
+
+  public void setModuleCount(int moduleCount) {
+    myModuleCount = moduleCount;
+  }
+
+  public int getModuleCount() {
+    return myModuleCount;
+  }
+
+  public void setClassesPerModule(int classesPerModule) {
+    myClassesPerModule = classesPerModule;
+  }
+
+  public int getClassesPerModule() {
+    return myClassesPerModule;
+  }
+
+  public void setMethodsPerClass(int methodsPerClass) {
+    myMethodsPerClass = methodsPerClass;
+  }
+
+  public int getMethodsPerClass() {
+    return myMethodsPerClass;
+  }
+
+  public void setFanOut(int fanOut) {
+    myFanOut = fanOut;
+  }
+
+  public int getFanOut() {
+    return myFanOut;
+  }
+
+  public void setBadCallRate(double badCallRate) {
+    myBadCallRate = badCallRate;
+  }
+
+  public double getBadCallRate() {
+    return myBadCallRate;
+  }
+
+  public void setOverloadRate(double overloadRate) {
+    myOverloadRate = overloadRate;
+  }
+
+  public double getOverloadRate() {
+    return myOverloadRate;
+  }
+
+  public void setAnonymousClassRate(double anonymousClassRate) {
+    myAnonymousClassRate = anonymousClassRate;
+  }
+
+  public double getAnonymousClassRate() {
+    return myAnonymousClassRate;
+  }
+
+  public void setSeed(long seed) {
+    mySeed = seed;
+  }
+
+  public long getSeed() {
+    return mySeed;
+  }
+
+  public static String getModuleName(int index) {
+    return "m" + index;
+  }
+
+  public String getRootClassName() {
+    return ROOT_PACKAGE + "." + getModuleName(myModuleCount - 1) + ".C0";
+  }
+
+  /**
+   * Writes the sources of every module to {@code <baseDir>/<module name>/src}.
+   */
+  public void generate(File baseDir) throws IOException {
+    myRandom = new Random(mySeed);
+    writeClass(baseDir, getModuleName(0), "Callback", "public interface Callback {\n  void call();\n}\n");
+    for (int i = 0; i < getExtraClassCount(); i++) {
+      writeClass(baseDir, EXTRA_MODULE, "E" + i, generateExtraClass(i));
+    }
+    for (int module = 0; module < myModuleCount; module++) {
+      for (int i = 0; i < myClassesPerModule; i++) {
+        writeClass(baseDir, getModuleName(module), "C" + i, generateClass(module, i));
+      }
+    }
+  }
+
+  private int getExtraClassCount() {
+    return Math.max(1, myClassesPerModule / 10);
+  }
+
+  private static void writeClass(File baseDir, String moduleName, String className, String body) throws IOException {
+    File file = new File(baseDir, moduleName + "/src/" + ROOT_PACKAGE + "/" + moduleName + "/" + className + ".java");
+    FileUtil.writeToFile(file, "package " + ROOT_PACKAGE + "." + moduleName + ";\n\n" + body);
+  }
+
+  private String generateExtraClass(int index) {
+    StringBuilder builder = new StringBuilder("public class E" + index + " {\n");
+    for (int m = 0; m < myMethodsPerClass; m++) {
+      builder.append("  public static void s").append(m).append("() {\n  }\n");
+    }
+    return builder.append("}\n").toString();
+  }
+
+  private String generateClass(int module, int index) {
+    StringBuilder builder = new StringBuilder("public class C" + index + " {\n");
+    builder.append("  public static int f0;\n");
+    builder.append("  public int g0;\n\n");
+    for (int m = 0; m < myMethodsPerClass; m++) {
+      boolean isStatic = m % 2 == 0;
+      appendMethod(builder, module, (isStatic ? "static " : "") + "void " + methodName(m) + "()");
+      if (isStatic && myRandom.nextDouble() < myOverloadRate) {
+        appendMethod(builder, module, "static void " + methodName(m) + "(int p)");
+      }
+    }
+    return builder.append("}\n").toString();
+  }
+
+  private static String methodName(int index) {
+    return (index % 2 == 0 ? "s" : "i") + index;
+  }
+
+  private void appendMethod(StringBuilder builder, int module, String signature) {
+    builder.append("  public ").append(signature).append(" {\n");
+    for (int i = 0; i < myFanOut; i++) {
+      builder.append("    ").append(generateCall(module)).append("\n");
+    }
+    if (myRandom.nextDouble() < myAnonymousClassRate) {
+      builder.append("    ").append(qualifiedClassName(getModuleName(0), "Callback")).append(" callback = new ")
+        .append(qualifiedClassName(getModuleName(0), "Callback")).append("() {\n");
+      builder.append("      public void call() {\n        ").append(generateCall(module)).append("\n      }\n    };\n");
+    }
+    builder.append("  }\n\n");
+  }
+
+  private String generateCall(int module) {
+    if (module == myModuleCount - 1 && myRandom.nextDouble() < myBadCallRate) {
+      return qualifiedClassName(EXTRA_MODULE, "E" + myRandom.nextInt(getExtraClassCount())) + ".s" +
+             2 * myRandom.nextInt((myMethodsPerClass + 1) / 2) + "();";
+    }
+    int targetModule = module == 0 || myRandom.nextDouble() < myLocalCallRate ? module : myRandom.nextInt(module);
+    String targetClass = qualifiedClassName(getModuleName(targetModule), "C" + myRandom.nextInt(myClassesPerModule));
+    if (myRandom.nextInt(3) == 0) {
+      return targetClass + ".f0++;";
+    }
+    int method = myRandom.nextInt(myMethodsPerClass);
+    if (method % 2 == 0) {
+      return targetClass + "." + methodName(method) + "();";
+    }
+    return "new " + targetClass + "()." + methodName(method) + "();";
+  }
+
+  private static String qualifiedClassName(String moduleName, String className) {
+    return ROOT_PACKAGE + "." + moduleName + "." + className;
+  }
+}
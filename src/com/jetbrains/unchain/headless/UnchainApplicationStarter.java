@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.headless;
+
+import com.intellij.ide.impl.ProjectUtil;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ApplicationStarterEx;
+import com.intellij.openapi.application.ex.ApplicationManagerEx;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiPackage;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Consumer;
+import com.jetbrains.unchain.*;
+import com.jetbrains.unchain.export.GraphExporter;
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the dependency analysis without UI and streams the results as newline-delimited JSON. Usage:
+ * <pre>
+ * unchain &lt;project path&gt; (-class &lt;qualified names&gt; | -package &lt;name&gt; | -module &lt;name&gt;) -target &lt;module&gt; [-output &lt;file&gt;]
+ *         [-export &lt;file&gt;] [-maxBad &lt;count&gt;] [-timeout &lt;ms&gt;] [-maxNodes &lt;count&gt;] [-maxDepth &lt;length&gt;]
+ *         [-prioritized] [-joint]
+ * unchain &lt;project path&gt; (-class &lt;qualified names&gt; | -package &lt;name&gt;) -rankTargets [-output &lt;file&gt;]
+ * </pre>
+ * -class takes one or more comma-separated class names. The classes of -class or -package are analyzed one by one,
+ * or with -joint together in a single traversal, as when they are moved at once; the bad dependencies of a joint
+ * analysis are written after it finishes and list the classes they are reached from. -rankTargets checks all modules
+ * of the project as targets for the classes, see {@link TargetModuleAnalyzer}, and writes one "target" object per
+ * module, the ones with the fewest bad dependencies first.
+ * The limits stop the analysis of each class early, see {@link AnalysisLimits}; they don't apply to -module.
+ * -prioritized reports the first bad dependencies sooner (see {@link Unchainer#setPrioritized}); when the analysis of
+ * a class finishes, a "callChain" object is written for every bad dependency whose call chain could be shortened. It
+ * can't be combined with -maxDepth.
+ * -export writes the traversed dependency graph of all analyzed classes, see {@link GraphExporter#create}.
+ * The process exits with code 0 if everything can be moved, 1 if bad dependencies were found or an analysis was stopped
+ * by a limit, and 2 on invalid input.
+ *
+ * @author yole
+ */
+public class UnchainApplicationStarter extends ApplicationStarterEx {
+  private static final Logger LOG = Logger.getInstance(UnchainApplicationStarter.class);
+
+  private String myProjectPath;
+  private String myClassName;
+  private String myPackageName;
+  private String myModuleName;
+  private String myTargetModuleName;
+  private String myOutputPath;
+  private String myExportPath;
+  private GraphExporter myExporter;
+  private boolean myPrioritized;
+  private boolean myJoint;
+  private boolean myRankTargets;
+  private final AnalysisLimits myLimits = new AnalysisLimits();
+
+  @Override
+  public String getCommandName() {
+    return "unchain";
+  }
+
+  @Override
+  public boolean isHeadless() {
+    return true;
+  }
+
+  @Override
+  public void premain(String[] args) {
+    if (!parseArgs(args)) {
+      printUsage();
+      System.exit(2);
+    }
+  }
+
+  private boolean parseArgs(String[] args) {
+    // args[0] is the command name
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-prioritized")) {
+        myPrioritized = true;
+      }
+      else if (arg.equals("-joint")) {
+        myJoint = true;
+      }
+      else if (arg.equals("-rankTargets")) {
+        myRankTargets = true;
+      }
+      else if (arg.startsWith("-")) {
+        if (i + 1 >= args.length) {
+          return false;
+        }
+        String value = args[++i];
+        if (arg.equals("-class")) {
+          myClassName = value;
+        }
+        else if (arg.equals("-package")) {
+          myPackageName = value;
+        }
+        else if (arg.equals("-module")) {
+          myModuleName = value;
+        }
+        else if (arg.equals("-target")) {
+          myTargetModuleName = value;
+        }
+        else if (arg.equals("-output")) {
+          myOutputPath = value;
+        }
+        else if (arg.equals("-export")) {
+          myExportPath = value;
+        }
+        else if (!parseLimit(arg, value)) {
+          return false;
+        }
+      }
+      else if (myProjectPath == null) {
+        myProjectPath = new File(arg).getAbsolutePath();
+      }
+      else {
+        return false;
+      }
+    }
+    if (myPrioritized && myLimits.getMaxDepth() > 0) {
+      return false;
+    }
+    int roots = (myClassName != null ? 1 : 0) + (myPackageName != null ? 1 : 0) + (myModuleName != null ? 1 : 0);
+    if (myRankTargets) {
+      return myProjectPath != null && myModuleName == null && roots == 1;
+    }
+    return myProjectPath != null && myTargetModuleName != null && roots == 1;
+  }
+
+  private boolean parseLimit(String arg, String value) {
+    int limit;
+    try {
+      limit = Integer.parseInt(value);
+    }
+    catch (NumberFormatException e) {
+      return false;
+    }
+    if (arg.equals("-maxBad")) {
+      myLimits.setMaxBadDependencies(limit);
+    }
+    else if (arg.equals("-timeout")) {
+      myLimits.setTimeBudgetMillis(limit);
+    }
+    else if (arg.equals("-maxNodes")) {
+      myLimits.setMaxNodes(limit);
+    }
+    else if (arg.equals("-maxDepth")) {
+      myLimits.setMaxDepth(limit);
+    }
+    else {
+      return false;
+    }
+    return true;
+  }
+
+  private static void printUsage() {
+    System.err.println("Usage: unchain <project path> (-class <qualified names> | -package <name> | -module <name>) " +
+                       "-target <module> [-output <file>] [-export <file>] [-maxBad <count>] [-timeout <ms>] [-maxNodes <count>] [-maxDepth <length>] " +
+                       "[-prioritized] [-joint]");
+    System.err.println("       unchain <project path> (-class <qualified names> | -package <name>) -rankTargets [-output <file>]");
+  }
+
+  @Override
+  public void main(String[] args) {
+    int exitCode;
+    try {
+      exitCode = run();
+    }
+    catch (Throwable e) {
+      LOG.error(e);
+      exitCode = 2;
+    }
+    System.exit(exitCode);
+  }
+
+  private int run() throws IOException {
+    ApplicationManagerEx.getApplicationEx().doNotSave();
+    Project project = ProjectUtil.openOrImport(myProjectPath, null, false);
+    if (project == null) {
+      System.err.println("Unable to open project " + myProjectPath);
+      return 2;
+    }
+    DumbService dumbService = DumbService.getInstance(project);
+    if (dumbService.isDumb() && !ApplicationManager.getApplication().isDispatchThread()) {
+      dumbService.waitForSmartMode();
+    }
+
+    OutputStream stream = myOutputPath != null ? new FileOutputStream(myOutputPath) : System.out;
+    PrintWriter printWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")));
+    if (myExportPath != null) {
+      myExporter = GraphExporter.create(new File(myExportPath));
+    }
+    try {
+      return analyze(project, new JsonLineWriter(printWriter));
+    }
+    finally {
+      printWriter.close();
+      if (myExporter != null) {
+        myExporter.close();
+      }
+    }
+  }
+
+  private int analyze(final Project project, final JsonLineWriter writer) {
+    ModuleManager moduleManager = ModuleManager.getInstance(project);
+    final Module targetModule = myTargetModuleName != null ? moduleManager.findModuleByName(myTargetModuleName) : null;
+    if (targetModule == null && !myRankTargets) {
+      writer.writeError("Module " + myTargetModuleName + " not found");
+      return 2;
+    }
+
+    final UnchainRules rules = UnchainConfiguration.getInstance(project).createRules();
+    if (myModuleName != null) {
+      final Module sourceModule = moduleManager.findModuleByName(myModuleName);
+      if (sourceModule == null) {
+        writer.writeError("Module " + myModuleName + " not found");
+        return 2;
+      }
+      // the analyzer takes read actions itself and the reports don't reference PSI
+      boolean allMovable = true;
+      for (MovabilityReport report : new ModuleAnalyzer(sourceModule, targetModule, rules).run()) {
+        writer.writeMovabilityReport(report);
+        allMovable &= report.canMove();
+      }
+      return allMovable ? 0 : 1;
+    }
+
+    List<String> classNames = ApplicationManager.getApplication().runReadAction(new Computable<List<String>>() {
+      @Override
+      public List<String> compute() {
+        return findClassNames(project);
+      }
+    });
+    if (classNames == null) {
+      writer.writeError("Class or package " + (myClassName != null ? myClassName : myPackageName) + " not found");
+      return 2;
+    }
+
+    if (myRankTargets) {
+      return rankTargets(project, classNames, rules, writer);
+    }
+
+    if (myJoint) {
+      return analyzeJointly(project, classNames, targetModule, rules, writer);
+    }
+
+    int exitCode = 0;
+    for (String className : classNames) {
+      exitCode = Math.max(exitCode, analyzeClass(project, className, targetModule, rules, writer));
+    }
+    return exitCode;
+  }
+
+  private List<String> findClassNames(Project project) {
+    JavaPsiFacade facade = JavaPsiFacade.getInstance(project);
+    GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+    if (myClassName != null) {
+      List<String> result = new ArrayList<String>();
+      for (String className : StringUtil.split(myClassName, ",")) {
+        className = className.trim();
+        if (facade.findClass(className, scope) == null) {
+          return null;
+        }
+        result.add(className);
+      }
+      return result;
+    }
+    PsiPackage psiPackage = facade.findPackage(myPackageName);
+    if (psiPackage == null) {
+      return null;
+    }
+    PsiClass[] classes = psiPackage.getClasses(scope);
+    String[] result = new String[classes.length];
+    for (int i = 0; i < classes.length; i++) {
+      result[i] = classes[i].getQualifiedName();
+    }
+    Arrays.sort(result);
+    return Arrays.asList(result);
+  }
+
+  /**
+   * Must be called without a read action, see {@link TargetModuleAnalyzer#run}.
+   */
+  private static int rankTargets(final Project project, final List<String> classNames, final UnchainRules rules,
+                                 final JsonLineWriter writer) {
+    final List<PsiClass> classes = ApplicationManager.getApplication().runReadAction(new Computable<List<PsiClass>>() {
+      @Override
+      public List<PsiClass> compute() {
+        return findClasses(project, classNames, writer);
+      }
+    });
+    if (classes == null) {
+      return 2;
+    }
+    if (classes.isEmpty()) {
+      return 0;
+    }
+    TargetModuleAnalyzer analyzer = ApplicationManager.getApplication().runReadAction(new Computable<TargetModuleAnalyzer>() {
+      @Override
+      public TargetModuleAnalyzer compute() {
+        List<Module> candidates = Arrays.asList(ModuleManager.getInstance(project).getModules());
+        return new TargetModuleAnalyzer(classes, candidates, rules);
+      }
+    });
+    boolean canMove = false;
+    for (TargetModuleReport report : analyzer.run()) {
+      writer.writeTargetModuleReport(report);
+      canMove |= report.canMove();
+    }
+    return canMove ? 0 : 1;
+  }
+
+  /**
+   * Finds the classes with the given names and checks that they belong to the same module, so that they can be
+   * analyzed together. Returns null if they can't.
+   */
+  private static List<PsiClass> findClasses(Project project, List<String> classNames, JsonLineWriter writer) {
+    List<PsiClass> classes = new ArrayList<PsiClass>();
+    for (String className : classNames) {
+      PsiClass psiClass = JavaPsiFacade.getInstance(project).findClass(className, GlobalSearchScope.projectScope(project));
+      if (psiClass == null) {
+        writer.writeError("Class " + className + " not found");
+        return null;
+      }
+      if (!classes.isEmpty() &&
+          ModuleUtil.findModuleForPsiElement(psiClass) != ModuleUtil.findModuleForPsiElement(classes.get(0))) {
+        writer.writeError("Classes " + classNames.get(0) + " and " + className + " belong to different modules");
+        return null;
+      }
+      classes.add(psiClass);
+    }
+    return classes;
+  }
+
+  /**
+   * Analyzes all classes in one traversal. The results are reported for the -class or -package argument as a whole.
+   * Like {@link #analyzeClass}, this must be called without a read action, because {@link Unchainer#run()} takes
+   * its own read actions and gives way to write actions between them.
+   *
+   * @return the exit code: 0 if the classes can be moved, 1 if they can't and 2 if they couldn't be analyzed
+   */
+  private int analyzeJointly(final Project project, final List<String> classNames, final Module targetModule,
+                             UnchainRules rules, final JsonLineWriter writer) {
+    final String root = myClassName != null ? myClassName : myPackageName;
+    final Unchainer unchainer = ApplicationManager.getApplication().runReadAction(new Computable<Unchainer>() {
+      @Override
+      public Unchainer compute() {
+        List<PsiClass> classes = findClasses(project, classNames, writer);
+        return classes != null && !classes.isEmpty() ? new Unchainer(classes, targetModule) : null;
+      }
+    });
+    if (unchainer == null) {
+      if (classNames.isEmpty()) {
+        writer.writeResult(root, 0, null);
+        return 0;
+      }
+      return 2;
+    }
+    unchainer.setLimits(myLimits);
+    unchainer.setRules(rules);
+    unchainer.setGraphListener(myExporter);
+    unchainer.setPrioritized(myPrioritized);
+    unchainer.run();
+    return ApplicationManager.getApplication().runReadAction(new Computable<Integer>() {
+      @Override
+      public Integer compute() {
+        for (BadDependencyItem item : unchainer.getBadDependencies()) {
+          writer.writeBadDependency(root, item);
+        }
+        return writeResult(root, unchainer, writer) ? 0 : 1;
+      }
+    });
+  }
+
+  /**
+   * Analyzes a single class with a fresh Unchainer, so that nothing but the persistent reference index is retained
+   * between the classes of a package. Must be called without a read action.
+   *
+   * @return the exit code: 0 if the class can be moved, 1 if it can't and 2 if it wasn't found
+   */
+  private int analyzeClass(final Project project, final String className, final Module targetModule, UnchainRules rules,
+                           final JsonLineWriter writer) {
+    final Unchainer unchainer = ApplicationManager.getApplication().runReadAction(new Computable<Unchainer>() {
+      @Override
+      public Unchainer compute() {
+        PsiClass psiClass = JavaPsiFacade.getInstance(project).findClass(className, GlobalSearchScope.projectScope(project));
+        return psiClass != null ? new Unchainer(psiClass, targetModule) : null;
+      }
+    });
+    if (unchainer == null) {
+      writer.writeError("Class " + className + " not found");
+      return 2;
+    }
+    unchainer.setLimits(myLimits);
+    unchainer.setRules(rules);
+    unchainer.setGraphListener(myExporter);
+    unchainer.setPrioritized(myPrioritized);
+    final TObjectIntHashMap<String> reportedChainLengths = new TObjectIntHashMap<String>();
+    unchainer.setBadDependencyListener(new Consumer<BadDependencyItem>() {
+      @Override
+      public void consume(BadDependencyItem item) {
+        writer.writeBadDependency(className, item);
+        reportedChainLengths.put(item.toString(), item.getCallChain().size());
+      }
+    });
+    unchainer.run();
+    return ApplicationManager.getApplication().runReadAction(new Computable<Integer>() {
+      @Override
+      public Integer compute() {
+        if (unchainer.isPrioritized()) {
+          for (BadDependencyItem item : unchainer.getBadDependencies()) {
+            if (item.getCallChain().size() < reportedChainLengths.get(item.toString())) {
+              writer.writeCallChain(className, item);
+            }
+          }
+        }
+        return writeResult(className, unchainer, writer) ? 0 : 1;
+      }
+    });
+  }
+
+  private static boolean writeResult(String root, Unchainer unchainer, JsonLineWriter writer) {
+    int badDependencyCount = unchainer.getBadDependencyCount();
+    if (badDependencyCount == 0 && unchainer.isComplete()) {
+      for (String qName : unchainer.getGoodDependencies()) {
+        writer.writeGoodDependency(root, qName);
+      }
+    }
+    writer.writeResult(root, badDependencyCount, unchainer.getIncompleteReason());
+    return badDependencyCount == 0 && unchainer.isComplete();
+  }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (c) 2013 JetBrains
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.jetbrains.unchain.headless;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ApplicationStarterEx;
+import com.intellij.openapi.application.ex.ApplicationManagerEx;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.ModifiableModuleModel;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.StdModuleTypes;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ex.ProjectManagerEx;
+import com.intellij.openapi.roots.ContentEntry;
+import com.intellij.openapi.roots.ModifiableRootModel;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.jetbrains.unchain.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Generates a synthetic multi-module project (see {@link SyntheticProjectGenerator}) and measures the analysis and
+ * the move on it. Usage:
+ * <pre>
+ * unchain-benchmark &lt;output directory&gt; [-modules &lt;count&gt;] [-classes &lt;count per module&gt;]
+ *         [-methods &lt;count per class&gt;] [-fanOut &lt;calls per method&gt;] [-badRate &lt;0..1&gt;]
+ *         [-overloadRate &lt;0..1&gt;] [-anonymousRate &lt;0..1&gt;] [-seed &lt;seed&gt;] [-iterations &lt;count&gt;] [-parallel]
+ *         [-prioritized]
+ * </pre>
+ * Results are written to stdout as newline-delimited JSON, one "benchmark" object per measured operation, with the
+ * generator parameters included, so that results of different commits can be compared line by line. The first
+ * iteration runs with a cold {@link ReferenceIndex} and is reported separately from the warm iterations. The analysis
+ * project is generated into the "analysis" subdirectory, and every iteration of the move into a fresh "move&lt;i&gt;"
+ * subdirectory.
+ *
+ * @author yole
+ */
+public class UnchainBenchmarkStarter extends ApplicationStarterEx {
+  private static final Logger LOG = Logger.getInstance(UnchainBenchmarkStarter.class);
+  private static final String RESTRICTED_TARGET_MODULE = "targetRestricted";
+  private static final String FULL_TARGET_MODULE = "targetFull";
+
+  private final SyntheticProjectGenerator myGenerator = new SyntheticProjectGenerator();
+  private File myBaseDir;
+  private int myIterations = 5;
+  private boolean myParallel;
+  private boolean myPrioritized;
+
+  @Override
+  public String getCommandName() {
+    return "unchain-benchmark";
+  }
+
+  @Override
+  public boolean isHeadless() {
+    return true;
+  }
+
+  @Override
+  public void premain(String[] args) {
+    if (!parseArgs(args)) {
+      System.err.println("Usage: unchain-benchmark <output directory> [-modules <count>] [-classes <count per module>] " +
+                         "[-methods <count per class>] [-fanOut <calls per method>] [-badRate <0..1>] [-overloadRate <0..1>] " +
+                         "[-anonymousRate <0..1>] [-seed <seed>] [-iterations <count>] [-parallel] [-prioritized]");
+      System.exit(2);
+    }
+  }
+
+  private boolean parseArgs(String[] args) {
+    // args[0] is the command name
+    try {
+      for (int i = 1; i < args.length; i++) {
+        String arg = args[i];
+        if (arg.equals("-parallel")) {
+          myParallel = true;
+        }
+        else if (arg.equals("-prioritized")) {
+          myPrioritized = true;
+        }
+        else if (arg.startsWith("-")) {
+          if (i + 1 >= args.length || !parseOption(arg, args[++i])) {
+            return false;
+          }
+        }
+        else if (myBaseDir == null) {
+          myBaseDir = new File(arg).getAbsoluteFile();
+        }
+        else {
+          return false;
+        }
+      }
+    }
+    catch (NumberFormatException e) {
+      return false;
+    }
+    return myBaseDir != null && myIterations > 0;
+  }
+
+  private boolean parseOption(String arg, String value) {
+    if (arg.equals("-modules")) {
+      myGenerator.setModuleCount(Integer.parseInt(value));
+    }
+    else if (arg.equals("-classes")) {
+      myGenerator.setClassesPerModule(Integer.parseInt(value));
+    }
+    else if (arg.equals("-methods")) {
+      myGenerator.setMethodsPerClass(Integer.parseInt(value));
+    }
+    else if (arg.equals("-fanOut")) {
+      myGenerator.setFanOut(Integer.parseInt(value));
+    }
+    else if (arg.equals("-badRate")) {
+      myGenerator.setBadCallRate(Double.parseDouble(value));
+    }
+    else if (arg.equals("-overloadRate")) {
+      myGenerator.setOverloadRate(Double.parseDouble(value));
+    }
+    else if (arg.equals("-anonymousRate")) {
+      myGenerator.setAnonymousClassRate(Double.parseDouble(value));
+    }
+    else if (arg.equals("-seed")) {
+      myGenerator.setSeed(Long.parseLong(value));
+    }
+    else if (arg.equals("-iterations")) {
+      myIterations = Integer.parseInt(value);
+    }
+    else {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void main(String[] args) {
+    int exitCode = 0;
+    try {
+      run();
+    }
+    catch (Throwable e) {
+      LOG.error(e);
+      exitCode = 2;
+    }
+    System.exit(exitCode);
+  }
+
+  private void run() throws IOException {
+    ApplicationManagerEx.getApplicationEx().doNotSave();
+    FileUtil.delete(myBaseDir);
+    final Project project = generateProject(new File(myBaseDir, "analysis"));
+
+    PrintWriter printWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8")));
+    try {
+      JsonLineWriter writer = new JsonLineWriter(printWriter);
+      runBenchmarks(project, writer);
+      benchmarkMove(writer);
+    }
+    finally {
+      printWriter.flush();
+    }
+  }
+
+  /**
+   * Generates the sources into the directory and opens them as a project, waiting for the indices to be built.
+   */
+  private Project generateProject(File baseDir) throws IOException {
+    myGenerator.generate(baseDir);
+    Project project = createProject(baseDir);
+    DumbService dumbService = DumbService.getInstance(project);
+    if (dumbService.isDumb() && !ApplicationManager.getApplication().isDispatchThread()) {
+      dumbService.waitForSmartMode();
+    }
+    return project;
+  }
+
+  private Project createProject(final File baseDir) throws IOException {
+    ProjectManagerEx projectManager = ProjectManagerEx.getInstanceEx();
+    String projectFilePath = new File(baseDir, "benchmark.ipr").getPath();
+    final Project project = projectManager.newProject(baseDir.getName(), projectFilePath, false, false);
+    if (project == null) {
+      throw new IOException("Unable to create project in " + baseDir);
+    }
+    projectManager.openProject(project);
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        ModifiableModuleModel moduleModel = ModuleManager.getInstance(project).getModifiableModel();
+        List<Module> modules = new ArrayList<Module>();
+        for (int i = 0; i < myGenerator.getModuleCount(); i++) {
+          modules.add(createModule(baseDir, moduleModel, SyntheticProjectGenerator.getModuleName(i)));
+        }
+        Module extraModule = createModule(baseDir, moduleModel, SyntheticProjectGenerator.EXTRA_MODULE);
+        Module restrictedTarget = createModule(baseDir, moduleModel, RESTRICTED_TARGET_MODULE);
+        Module fullTarget = createModule(baseDir, moduleModel, FULL_TARGET_MODULE);
+        moduleModel.commit();
+
+        for (int i = 0; i < modules.size(); i++) {
+          List<Module> dependencies = new ArrayList<Module>(modules.subList(0, i));
+          if (i == modules.size() - 1) {
+            dependencies.add(extraModule);
+          }
+          setupRoots(baseDir, modules.get(i), dependencies);
+        }
+        setupRoots(baseDir, extraModule, Collections.<Module>emptyList());
+        List<Module> lowerModules = modules.subList(0, modules.size() - 1);
+        setupRoots(baseDir, restrictedTarget, lowerModules);
+        List<Module> fullDependencies = new ArrayList<Module>(lowerModules);
+        fullDependencies.add(extraModule);
+        setupRoots(baseDir, fullTarget, fullDependencies);
+      }
+    });
+    return project;
+  }
+
+  private static Module createModule(File baseDir, ModifiableModuleModel moduleModel, String name) {
+    File srcDir = new File(baseDir, name + "/src");
+    srcDir.mkdirs();
+    return moduleModel.newModule(new File(baseDir, name + "/" + name + ".iml").getPath(), StdModuleTypes.JAVA.getId());
+  }
+
+  private static void setupRoots(File baseDir, Module module, List<Module> dependencies) {
+    File moduleDir = new File(baseDir, module.getName());
+    VirtualFile contentRoot = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(moduleDir);
+    VirtualFile sourceRoot = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(new File(moduleDir, "src"));
+    if (contentRoot == null || sourceRoot == null) {
+      throw new IllegalStateException("Cannot find generated sources of module " + module.getName());
+    }
+    contentRoot.refresh(false, true);
+    ModifiableRootModel model = ModuleRootManager.getInstance(module).getModifiableModel();
+    ContentEntry contentEntry = model.addContentEntry(contentRoot);
+    contentEntry.addSourceFolder(sourceRoot, false);
+    for (Module dependency : dependencies) {
+      model.addModuleOrderEntry(dependency);
+    }
+    model.commit();
+  }
+
+  private String getParameters() {
+    return "modules=" + myGenerator.getModuleCount() + ",classes=" + myGenerator.getClassesPerModule() +
+           ",methods=" + myGenerator.getMethodsPerClass() + ",fanOut=" + myGenerator.getFanOut() +
+           ",badRate=" + myGenerator.getBadCallRate() + ",overloadRate=" + myGenerator.getOverloadRate() +
+           ",anonymousRate=" + myGenerator.getAnonymousClassRate() + ",seed=" + myGenerator.getSeed() +
+           ",parallel=" + myParallel + ",prioritized=" + myPrioritized;
+  }
+
+  /**
+   * Time, allocation and retained heap of the iterations of a single operation. The first iteration runs with cold
+   * caches, so it is reported separately and the statistics of the other iterations only include warm runs.
+   */
+  private static class Measurements {
+    private final long[] myTimes;
+    private long myColdAllocatedBytes;
+    private long myAllocatedBytes;
+    private long myRetainedBytes;
+    private int myItemCount;
+    private int myCount;
+
+    private Measurements(int iterations) {
+      myTimes = new long[iterations];
+    }
+
+    private void add(long time, long allocatedBytes) {
+      if (myCount == 0) {
+        myColdAllocatedBytes = allocatedBytes;
+      }
+      else {
+        myAllocatedBytes += allocatedBytes;
+      }
+      myTimes[myCount++] = time;
+    }
+
+    private void write(JsonLineWriter writer, String operation, String parameters) {
+      if (myCount == 0) {
+        return;
+      }
+      writer.writeBenchmark(operation, parameters, true, new long[]{myTimes[0]}, myItemCount, myColdAllocatedBytes,
+                            myRetainedBytes);
+      if (myCount > 1) {
+        long[] times = Arrays.copyOfRange(myTimes, 1, myCount);
+        Arrays.sort(times);
+        writer.writeBenchmark(operation, parameters, false, times, myItemCount, myAllocatedBytes / (myCount - 1),
+                              myRetainedBytes);
+      }
+    }
+  }
+
+  private void runBenchmarks(final Project project, JsonLineWriter writer) {
+    ModuleManager moduleManager = ModuleManager.getInstance(project);
+    final Module restrictedTarget = moduleManager.findModuleByName(RESTRICTED_TARGET_MODULE);
+    final Module fullTarget = moduleManager.findModuleByName(FULL_TARGET_MODULE);
+    final PsiClass rootClass = ApplicationManager.getApplication().runReadAction(new Computable<PsiClass>() {
+      @Override
+      public PsiClass compute() {
+        return JavaPsiFacade.getInstance(project).findClass(myGenerator.getRootClassName(), GlobalSearchScope.projectScope(project));
+      }
+    });
+    if (rootClass == null || restrictedTarget == null || fullTarget == null) {
+      writer.writeError("Generated project was not set up correctly");
+      return;
+    }
+
+    Measurements run = new Measurements(myIterations);
+    Measurements badDependencies = new Measurements(myIterations);
+    Measurements goodDependencies = new Measurements(myIterations);
+    for (int i = 0; i < myIterations; i++) {
+      long usedHeap = getUsedHeapAfterGC();
+      final Unchainer unchainer = createUnchainer(rootClass, restrictedTarget);
+      long allocated = getAllocatedBytes();
+      long start = System.currentTimeMillis();
+      unchainer.run();
+      run.add(System.currentTimeMillis() - start, getAllocatedBytes() - allocated);
+      run.myItemCount = unchainer.getVisitedMemberCount();
+      run.myRetainedBytes = getUsedHeapAfterGC() - usedHeap;
+
+      allocated = getAllocatedBytes();
+      start = System.currentTimeMillis();
+      List<BadDependencyItem> items = ApplicationManager.getApplication().runReadAction(new Computable<List<BadDependencyItem>>() {
+        @Override
+        public List<BadDependencyItem> compute() {
+          return unchainer.getBadDependencies();
+        }
+      });
+      badDependencies.add(System.currentTimeMillis() - start, getAllocatedBytes() - allocated);
+      badDependencies.myItemCount = items.size();
+
+      final Unchainer goodUnchainer = createUnchainer(rootClass, fullTarget);
+      goodUnchainer.run();
+      allocated = getAllocatedBytes();
+      start = System.currentTimeMillis();
+      List<String> goodQNames = ApplicationManager.getApplication().runReadAction(new Computable<List<String>>() {
+        @Override
+        public List<String> compute() {
+          return goodUnchainer.getGoodDependencies();
+        }
+      });
+      goodDependencies.add(System.currentTimeMillis() - start, getAllocatedBytes() - allocated);
+      goodDependencies.myItemCount = goodQNames.size();
+    }
+    String parameters = getParameters();
+    run.write(writer, "Unchainer.run", parameters);
+    badDependencies.write(writer, "Unchainer.getBadDependencies", parameters);
+    goodDependencies.write(writer, "Unchainer.getGoodDependencies", parameters);
+  }
+
+  private Unchainer createUnchainer(PsiClass rootClass, Module targetModule) {
+    Unchainer unchainer = new Unchainer(rootClass, targetModule);
+    unchainer.setParallel(myParallel);
+    unchainer.setPrioritized(myPrioritized);
+    return unchainer;
+  }
+
+  /**
+   * Moves the top-level classes of the good dependencies of the root class to the target module. The move changes the
+   * project, so every iteration moves the classes in a fresh copy of the generated project; the analysis which finds
+   * the classes to move is not measured.
+   */
+  private void benchmarkMove(JsonLineWriter writer) throws IOException {
+    Measurements move = new Measurements(myIterations);
+    for (int i = 0; i < myIterations; i++) {
+      final Project project = generateProject(new File(myBaseDir, "move" + i));
+      try {
+        final Module fullTarget = ModuleManager.getInstance(project).findModuleByName(FULL_TARGET_MODULE);
+        final PsiClass rootClass = ApplicationManager.getApplication().runReadAction(new Computable<PsiClass>() {
+          @Override
+          public PsiClass compute() {
+            return JavaPsiFacade.getInstance(project).findClass(myGenerator.getRootClassName(),
+                                                                GlobalSearchScope.projectScope(project));
+          }
+        });
+        if (rootClass == null || fullTarget == null) {
+          writer.writeError("Generated project was not set up correctly");
+          return;
+        }
+        final Unchainer unchainer = createUnchainer(rootClass, fullTarget);
+        unchainer.run();
+        final Set<String> classNames = new LinkedHashSet<String>();
+        QNameIndex qNameIndex = ApplicationManager.getApplication().runReadAction(new Computable<QNameIndex>() {
+          @Override
+          public QNameIndex compute() {
+            for (String qName : unchainer.getGoodDependencies()) {
+              classNames.add(PsiQNames.extractClassName(qName));
+            }
+            return unchainer.createQNameIndex();
+          }
+        });
+        final UnchainMover mover = new UnchainMover(fullTarget, new ArrayList<String>(classNames), qNameIndex);
+        long allocated = getAllocatedBytes();
+        long start = System.currentTimeMillis();
+        ApplicationManager.getApplication().runReadAction(new Runnable() {
+          @Override
+          public void run() {
+            mover.prepare();
+          }
+        });
+        mover.findUsages(new EmptyProgressIndicator());
+        // the conflicts are detected as part of the measured search, but the classes are moved regardless
+        ApplicationManager.getApplication().invokeAndWait(new Runnable() {
+          @Override
+          public void run() {
+            CommandProcessor.getInstance().executeCommand(project, new Runnable() {
+              @Override
+              public void run() {
+                List<String> remaining = mover.performMove();
+                if (!remaining.isEmpty()) {
+                  LOG.warn(remaining.size() + " classes were not moved because their usages were invalidated");
+                }
+              }
+            }, "Moving classes to target module", null);
+          }
+        }, ApplicationManager.getApplication().getDefaultModalityState());
+        move.add(System.currentTimeMillis() - start, getAllocatedBytes() - allocated);
+        move.myItemCount = classNames.size();
+      }
+      finally {
+        ApplicationManager.getApplication().invokeAndWait(new Runnable() {
+          @Override
+          public void run() {
+            ProjectManagerEx.getInstanceEx().closeAndDispose(project);
+          }
+        }, ApplicationManager.getApplication().getDefaultModalityState());
+      }
+    }
+    move.write(writer, "UnchainMover.run", getParameters());
+  }
+
+  /**
+   * Returns the number of bytes allocated by all live threads, so that allocations of the worker threads of the
+   * parallel analysis are included.
+   */
+  private static long getAllocatedBytes() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    long result = 0;
+    for (long allocated : ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+      if (allocated > 0) {
+        result += allocated;
+      }
+    }
+    return result;
+  }
+
+  private static long getUsedHeapAfterGC() {
+    System.gc();
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+}
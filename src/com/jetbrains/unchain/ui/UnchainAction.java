@@ -20,15 +20,17 @@ import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.LangDataKeys;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.openapi.wm.ToolWindowAnchor;
 import com.intellij.openapi.wm.ToolWindowManager;
-import com.intellij.psi.PsiClass;
-import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.*;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author yole
  */
@@ -44,20 +46,50 @@ public class UnchainAction extends AnAction {
     if (toolWindow == null) {
       toolWindow = toolWindowManager.registerToolWindow(UNCHAIN_TOOLWINDOW_ID, false, ToolWindowAnchor.RIGHT);
       ContentFactory contentFactory = toolWindow.getContentManager().getFactory();
-      PsiFile psiFile = anActionEvent.getData(LangDataKeys.PSI_FILE);
-      PsiClass psiClass = null;
-      if (psiFile instanceof PsiJavaFile) {
-        PsiClass[] classes = ((PsiJavaFile) psiFile).getClasses();
-        if (classes.length > 0) {
-          psiClass = classes[0];
-        }
-      }
-      Content content = contentFactory.createContent(new UnchainPanel(project, psiClass), "", false);
+      Content content = contentFactory.createContent(new UnchainPanel(project, getInitialRoots(anActionEvent)), "", false);
       toolWindow.getContentManager().addContent(content);
     }
     toolWindow.activate(null);
   }
 
+  /**
+   * Returns the names of the classes and packages selected in the project view, or the first class of the current file.
+   */
+  private static String getInitialRoots(AnActionEvent e) {
+    List<String> names = new ArrayList<String>();
+    PsiElement[] elements = e.getData(LangDataKeys.PSI_ELEMENT_ARRAY);
+    if (elements != null) {
+      for (PsiElement element : elements) {
+        if (element instanceof PsiClass && ((PsiClass) element).getQualifiedName() != null) {
+          names.add(((PsiClass) element).getQualifiedName());
+        }
+        else if (element instanceof PsiDirectory) {
+          PsiPackage psiPackage = JavaDirectoryService.getInstance().getPackage((PsiDirectory) element);
+          if (psiPackage != null && psiPackage.getQualifiedName().length() > 0) {
+            names.add(psiPackage.getQualifiedName());
+          }
+        }
+        else if (element instanceof PsiJavaFile) {
+          addFirstClassName(names, (PsiJavaFile) element);
+        }
+      }
+    }
+    if (names.isEmpty()) {
+      PsiFile psiFile = e.getData(LangDataKeys.PSI_FILE);
+      if (psiFile instanceof PsiJavaFile) {
+        addFirstClassName(names, (PsiJavaFile) psiFile);
+      }
+    }
+    return names.isEmpty() ? null : StringUtil.join(names, ", ");
+  }
+
+  private static void addFirstClassName(List<String> names, PsiJavaFile file) {
+    PsiClass[] classes = file.getClasses();
+    if (classes.length > 0 && classes[0].getQualifiedName() != null) {
+      names.add(classes[0].getQualifiedName());
+    }
+  }
+
   @Override
   public void update(AnActionEvent e) {
     e.getPresentation().setEnabled(getEventProject(e) != null);
@@ -21,29 +21,43 @@ import com.intellij.ide.actions.CloseTabToolbarAction;
 import com.intellij.ide.util.TreeClassChooser;
 import com.intellij.ide.util.TreeClassChooserFactory;
 import com.intellij.openapi.actionSystem.*;
-import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
 import com.intellij.openapi.fileEditor.OpenFileDescriptor;
 import com.intellij.openapi.fileTypes.StdFileTypes;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.ModuleUtil;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.ComponentWithBrowseButton;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.ui.popup.JBPopupFactory;
+import com.intellij.openapi.ui.popup.PopupStep;
+import com.intellij.openapi.ui.popup.util.BaseListPopupStep;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
 import com.intellij.openapi.wm.ToolWindowManager;
 import com.intellij.pom.Navigatable;
 import com.intellij.psi.*;
-import com.intellij.psi.search.LocalSearchScope;
+import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.search.ProjectScope;
-import com.intellij.psi.search.searches.ReferencesSearch;
+import com.intellij.refactoring.ui.ConflictsDialog;
 import com.intellij.ui.*;
 import com.intellij.ui.components.JBList;
-import com.jetbrains.unchain.BadDependencyItem;
-import com.jetbrains.unchain.PsiQNames;
-import com.jetbrains.unchain.UnchainMover;
-import com.jetbrains.unchain.Unchainer;
+import com.intellij.util.Alarm;
+import com.intellij.util.Consumer;
+import com.intellij.util.containers.MultiMap;
+import com.jetbrains.unchain.*;
+import com.jetbrains.unchain.export.GraphExporter;
 
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
@@ -53,14 +67,21 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.SoftReference;
+import java.util.*;
 import java.util.List;
 
 /**
  * @author yole
  */
 public class UnchainPanel extends JPanel {
+  private static final String EMPTY_TEXT = "Select classes or a package to analyze and press Analyze Dependencies";
+  private static final int BAD_DEPENDENCIES_UPDATE_DELAY = 200;
+
   private final Project myProject;
   private JPanel myMainPanel;
   private JPanel myClassNamePlaceholder;
@@ -70,19 +91,47 @@ public class UnchainPanel extends JPanel {
   private JBList myBadDepsList;
   private JBList myCallChainList;
   private JList myGoodDepsList;
+  private JLabel myInboundUsagesLabel;
+  private JBList myInboundUsagesList;
   private JButton myMoveClassesButton;
+  private JCheckBox myStopAtFirstCheckBox;
+  private JCheckBox myBadFirstCheckBox;
+  private JLabel myStatusLabel;
   private final EditorTextField myClassNameField;
   private boolean myBadDepsVisible;
   private boolean myGoodDepsVisible;
-  private final List<String> myUnwantedDeps = new ArrayList<String>();
-  private final List<String> myForcedMerges = new ArrayList<String>();
+  private SoftReference<ReferenceGraph> myReferenceGraph;
+  private QNameIndex myQNameIndex;
+  private CallGraph myCallGraph;
+  private ProgressIndicator myAnalysisIndicator;
+  private final Alarm myBadDepsUpdateAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD);
+  // added by Merge and Mark Unwanted; they are stored in the project only when saved in the rule editor
+  private final List<String> mySessionUnwantedDependencies = new ArrayList<String>();
+  private final List<String> mySessionForcedMerges = new ArrayList<String>();
 
-  public UnchainPanel(final Project project, final PsiClass initialClass) {
+  /**
+   * @param initialRoots comma-separated qualified names of the classes or packages to analyze, or null
+   */
+  public UnchainPanel(final Project project, String initialRoots) {
     myProject = project;
     setLayout(new BorderLayout());
     add(myMainPanel, BorderLayout.CENTER);
 
-    myBadDepsList.getEmptyText().setText("Select class to analyze and press Analyze Dependencies");
+    myBadDepsList.getEmptyText().setText(EMPTY_TEXT);
+    myBadDepsList.setCellRenderer(new ColoredListCellRenderer() {
+      @Override
+      protected void customizeCellRenderer(JList list, Object value, int index, boolean selected, boolean hasFocus) {
+        BadDependencyItem item = (BadDependencyItem) value;
+        append(item.toString());
+        if (!item.getRoots().isEmpty()) {
+          List<String> rootNames = new ArrayList<String>();
+          for (String root : item.getRoots()) {
+            rootNames.add(StringUtil.getShortName(root));
+          }
+          append(" from " + StringUtil.join(rootNames, ", "), SimpleTextAttributes.GRAYED_ATTRIBUTES);
+        }
+      }
+    });
 
     createToolbar();
 
@@ -92,9 +141,10 @@ public class UnchainPanel extends JPanel {
     PsiPackage defaultPackage = JavaPsiFacade.getInstance(myProject).findPackage("");
     final PsiCodeFragment fragment = factory.createReferenceCodeFragment("", defaultPackage, true, true);
     myClassNameField.setDocument(PsiDocumentManager.getInstance(myProject).getDocument(fragment));
-    if (initialClass != null) {
-      myClassNameField.setText(initialClass.getQualifiedName());
+    if (initialRoots != null) {
+      myClassNameField.setText(initialRoots);
     }
+    myClassNameField.setToolTipText("Qualified names of classes or packages, separated with commas");
 
     ComponentWithBrowseButton<EditorTextField> classNameWithBrowseButton = new ComponentWithBrowseButton<EditorTextField>(myClassNameField, new ActionListener() {
       @Override
@@ -154,6 +204,11 @@ public class UnchainPanel extends JPanel {
     });
     group.add(new MergeAction());
     group.add(new MarkUnwantedAction());
+    group.add(new ShowCallChainsAction());
+    group.add(new EditRulesAction());
+    group.add(new ExportGraphAction());
+    group.add(new AnalyzeModuleAction());
+    group.add(new RankTargetModulesAction());
     ActionToolbar toolbar = ActionManager.getInstance().createActionToolbar(ActionPlaces.UNKNOWN, group, true);
     add(toolbar.getComponent(), BorderLayout.NORTH);
   }
@@ -165,7 +220,7 @@ public class UnchainPanel extends JPanel {
         if (mouseEvent.getClickCount() == 2 && !mouseEvent.isPopupTrigger()) {
           BadDependencyItem selectedValue = (BadDependencyItem) myBadDepsList.getSelectedValue();
           if (selectedValue != null) {
-            Navigatable navigatable = selectedValue.getNavigatable();
+            Navigatable navigatable = selectedValue.getNavigatable(myProject);
             if (navigatable != null) {
               navigatable.navigate(true);
             }
@@ -188,9 +243,7 @@ public class UnchainPanel extends JPanel {
     new DoubleClickListener() {
       @Override
       protected boolean onDoubleClick(MouseEvent event) {
-        String qName = (String) myCallChainList.getSelectedValue();
-        PsiElement target = PsiQNames.findElementByQName(myProject, qName);
-        navigateToReference(target);
+        navigateToCallChainElement(myCallChainList.getSelectedIndex());
         return true;
       }
     }.installOn(myCallChainList);
@@ -201,68 +254,382 @@ public class UnchainPanel extends JPanel {
       @Override
       protected boolean onDoubleClick(MouseEvent event) {
         String qName = (String) myGoodDepsList.getSelectedValue();
-        PsiElement target = PsiQNames.findElementByQName(myProject, qName);
+        PsiElement target = findElement(qName);
         if (target instanceof Navigatable) {
           ((Navigatable) target).navigate(true);
         }
         return true;
       }
     }.installOn(myGoodDepsList);
+    myInboundUsagesList.getEmptyText().setText("No usages would break");
+    new DoubleClickListener() {
+      @Override
+      protected boolean onDoubleClick(MouseEvent event) {
+        InboundUsage usage = (InboundUsage) myInboundUsagesList.getSelectedValue();
+        Navigatable navigatable = usage != null ? usage.getNavigatable(myProject) : null;
+        if (navigatable != null) {
+          navigatable.navigate(true);
+        }
+        return true;
+      }
+    }.installOn(myInboundUsagesList);
   }
 
+  /**
+   * Checks which usages of the classes to move in modules that can't depend on the target module would break. Must be
+   * called without a read action.
+   */
+  private static List<InboundUsage> findInboundUsages(final Module targetModule, final List<String> qNames,
+                                                      final QNameIndex index) {
+    InboundUsageAnalyzer analyzer = ApplicationManager.getApplication().runReadAction(new Computable<InboundUsageAnalyzer>() {
+      @Override
+      public InboundUsageAnalyzer compute() {
+        List<PsiElement> elements = new ArrayList<PsiElement>();
+        for (String qName : qNames) {
+          PsiElement element = index.findElement(qName);
+          if (element != null) {
+            elements.add(element);
+          }
+        }
+        return new InboundUsageAnalyzer(targetModule, elements);
+      }
+    });
+    return analyzer.run();
+  }
 
-  private void navigateToReference(PsiElement target) {
-    if (target != null && myCallChainList.getSelectedIndex() == myCallChainList.getModel().getSize() - 1) {
-      BadDependencyItem badDependency = (BadDependencyItem) myBadDepsList.getSelectedValue();
-      PsiReference reference = ReferencesSearch.search(badDependency.getPsiElement(), new LocalSearchScope(target)).findFirst();
-      if (reference != null) {
-        new OpenFileDescriptor(myProject, reference.getElement().getContainingFile().getVirtualFile(),
-            reference.getRangeInElement().getStartOffset() + reference.getElement().getTextRange().getStartOffset()).navigate(true);
-        return;
+  private PsiElement findElement(String qName) {
+    return myQNameIndex != null ? myQNameIndex.findElement(qName) : PsiQNames.findElementByQName(myProject, qName);
+  }
+
+  /**
+   * Navigates to the reference from the selected call chain element to the next one, or to the usage of the bad
+   * dependency for the last element. If the offset of the reference is not known, navigates to the element itself.
+   */
+  private void navigateToCallChainElement(int index) {
+    BadDependencyItem badDependency = (BadDependencyItem) myBadDepsList.getSelectedValue();
+    if (badDependency == null || index < 0) {
+      return;
+    }
+    if (index == badDependency.getCallChain().size() - 1) {
+      Navigatable navigatable = badDependency.getNavigatable(myProject);
+      if (navigatable != null) {
+        navigatable.navigate(true);
       }
+      return;
     }
-    if (target instanceof Navigatable) {
+    PsiElement target = findElement(badDependency.getCallChain().get(index));
+    int offset = badDependency.getCallChainOffset(index);
+    VirtualFile file = target != null ? target.getContainingFile().getVirtualFile() : null;
+    if (offset >= 0 && file != null) {
+      new OpenFileDescriptor(myProject, file, offset).navigate(true);
+    }
+    else if (target instanceof Navigatable) {
       ((Navigatable) target).navigate(true);
     }
   }
 
+  /**
+   * The resolved references are kept only softly between runs, because the graph references the PSI of all analyzed
+   * members.
+   */
+  private ReferenceGraph getReferenceGraph() {
+    ReferenceGraph referenceGraph = myReferenceGraph != null ? myReferenceGraph.get() : null;
+    return referenceGraph != null && referenceGraph.isUpToDate() ? referenceGraph : null;
+  }
+
   private void runUnchainer() {
-    PsiClass psiClass = getSelectedClass();
+    runUnchainer(0);
+  }
+
+  private void runUnchainer(int indexToSelect) {
+    List<PsiClass> classes = getSelectedClasses();
     Module module = (Module) myTargetModuleComboBox.getSelectedItem();
-    if (psiClass != null && module != null) {
-      runUnchainer(psiClass, module);
+    if (classes != null && module != null && checkSameModule(classes)) {
+      runUnchainer(classes, module, indexToSelect, null);
+    }
+  }
+
+  private boolean checkSameModule(List<PsiClass> classes) {
+    Module sourceModule = ModuleUtil.findModuleForPsiElement(classes.get(0));
+    for (PsiClass aClass : classes) {
+      if (ModuleUtil.findModuleForPsiElement(aClass) != sourceModule) {
+        Messages.showErrorDialog(myProject, "Classes " + classes.get(0).getQualifiedName() + " and " +
+                                            aClass.getQualifiedName() + " belong to different modules. " +
+                                            "Only classes of one module can be analyzed together.", "Unchain");
+        return false;
+      }
     }
+    return true;
   }
 
-  private void runUnchainer(PsiClass psiClass, Module module) {
-    final Unchainer unchainer = new Unchainer(psiClass, module);
-    unchainer.setUnwantedDependencies(myUnwantedDeps);
-    unchainer.setForcedMerges(myForcedMerges);
+  private void runUnchainer(List<PsiClass> classes, final Module module, final int indexToSelect,
+                            final GraphExporter exporter) {
+    if (myAnalysisIndicator != null) {
+      myAnalysisIndicator.cancel();
+    }
+    final Unchainer unchainer = new Unchainer(classes, module);
+    unchainer.setParallel(Runtime.getRuntime().availableProcessors() > 1);
+    unchainer.setPrioritized(myBadFirstCheckBox.isSelected());
+    ReferenceGraph referenceGraph = getReferenceGraph();
+    if (referenceGraph != null) {
+      unchainer.setReferenceGraph(referenceGraph);
+    }
+    else {
+      myReferenceGraph = new SoftReference<ReferenceGraph>(unchainer.getReferenceGraph());
+    }
+    unchainer.setRules(createRules());
+    unchainer.setGraphListener(exporter);
+    if (myStopAtFirstCheckBox.isSelected()) {
+      AnalysisLimits limits = new AnalysisLimits();
+      limits.setMaxBadDependencies(1);
+      unchainer.setLimits(limits);
+    }
+
+    final BadDependenciesUpdater updater = new BadDependenciesUpdater();
+    myBadDepsList.setModel(updater.myModel);
+    myBadDepsList.getEmptyText().setText("Analyzing dependencies...");
+    myStatusLabel.setText("");
+    myCallGraph = null;
+    clearList(myCallChainList);
+    showDepsCard(true);
+
+    resetPeakHeapUsage();
+    Task.Backgroundable task = new Task.Backgroundable(myProject, "Analyzing Dependencies", true) {
+      private List<String> myGoodDependencies;
+      private List<InboundUsage> myInboundUsages;
+      private List<BadDependencyItem> myFinalBadDependencies;
+      private QNameIndex myIndex;
+      private CallGraph myGraph;
+      private String myExportError;
+
+      @Override
+      public void run(ProgressIndicator indicator) {
+        indicator.setIndeterminate(true);
+        indicator.setText2("Found no bad dependencies");
+        try {
+          unchainer.run();
+        }
+        finally {
+          if (exporter != null) {
+            try {
+              exporter.close();
+            }
+            catch (IOException e) {
+              myExportError = e.getMessage();
+            }
+          }
+        }
+        ApplicationManager.getApplication().runReadAction(new Runnable() {
+          @Override
+          public void run() {
+            if (unchainer.getBadDependencyCount() == 0 && unchainer.isComplete()) {
+              myGoodDependencies = unchainer.getGoodDependencies();
+            }
+            if (unchainer.isPrioritized() || unchainer.getRootCount() > 1) {
+              myFinalBadDependencies = unchainer.getBadDependencies();
+            }
+            myIndex = unchainer.createQNameIndex();
+            myGraph = unchainer.createCallGraph();
+          }
+        });
+        if (myGoodDependencies != null) {
+          indicator.setText2("Searching for usages that would break");
+          myInboundUsages = findInboundUsages(module, myGoodDependencies, myIndex);
+        }
+      }
+
+      @Override
+      public void onSuccess() {
+        if (!updater.isCurrent()) {
+          return;
+        }
+        myAnalysisIndicator = null;
+        myQNameIndex = myIndex;
+        myCallGraph = myGraph;
+        updater.flush();
+        if (myFinalBadDependencies != null) {
+          updater.myModel.replaceAll(myFinalBadDependencies);
+        }
+        // the heap is shared with the rest of the IDE and isn't collected before measuring, so the numbers are only an
+        // upper bound for the analysis; UnchainBenchmarkStarter measures the memory retained by the analysis itself
+        String memoryUsage = unchainer.getMetrics().getShortSummary() + ". IDE heap: peak " +
+                             toMegabytes(getPeakHeapUsage()) + " MB, used " + toMegabytes(getUsedHeap()) + " MB";
+        myStatusLabel.setToolTipText(unchainer.getMetrics().getSummary());
+        if (myExportError != null) {
+          memoryUsage = "Graph export failed: " + myExportError + ". " + memoryUsage;
+        }
+        if (unchainer.isComplete()) {
+          myBadDepsList.getEmptyText().setText(EMPTY_TEXT);
+          myStatusLabel.setText(memoryUsage);
+        }
+        else {
+          myBadDepsList.getEmptyText().setText("No bad dependencies found before the analysis stopped");
+          myStatusLabel.setText("Incomplete results: " + unchainer.getIncompleteReason() + ". " + memoryUsage);
+        }
+        if (myGoodDependencies != null) {
+          showDepsCard(false);
+          myGoodDepsList.setModel(new CollectionListModel<String>(myGoodDependencies));
+          myInboundUsagesList.setModel(new CollectionListModel<InboundUsage>(myInboundUsages));
+          myInboundUsagesLabel.setText(myInboundUsages.isEmpty() ? "No usages would break after the move"
+                                                                 : myInboundUsages.size() + " usages would break after the move:");
+        }
+        else {
+          int size = myBadDepsList.getItemsCount();
+          myBadDepsList.setSelectedIndex(indexToSelect >= size ? size - 1 : indexToSelect);
+        }
+      }
+
+      @Override
+      public void onCancel() {
+        if (updater.isCurrent()) {
+          myAnalysisIndicator = null;
+          myBadDepsList.getEmptyText().setText("Analysis cancelled");
+        }
+      }
+    };
+    final ProgressIndicator indicator = new BackgroundableProcessIndicator(task);
+    myAnalysisIndicator = indicator;
     unchainer.setBadDependencyFoundCallback(new Runnable() {
       @Override
       public void run() {
-        ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
         indicator.setText2("Found " + unchainer.getBadDependencyCount() + " bad dependencies");
       }
     });
-    ProgressManager.getInstance().runProcessWithProgressSynchronously(new Runnable() {
+    unchainer.setBadDependencyListener(updater);
+    unchainer.setRestartListener(new Runnable() {
       @Override
       public void run() {
-        ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
-        indicator.setIndeterminate(true);
-        indicator.setText2("Found no bad dependencies");
-        unchainer.run();
+        indicator.setText2("Code changed, restarting the analysis");
+        updater.restart();
       }
-    }, "Analyzing Dependencies", true, myProject);
+    });
+    ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, indicator);
+  }
+
+  /**
+   * Collects bad dependencies reported from the analysis thread and adds them to the list in batches.
+   */
+  private class BadDependenciesUpdater implements Consumer<BadDependencyItem> {
+    private final CollectionListModel<BadDependencyItem> myModel = new CollectionListModel<BadDependencyItem>();
+    private final List<BadDependencyItem> myPendingItems = new ArrayList<BadDependencyItem>();
+    private boolean myRestarted;
 
-    boolean haveBadDeps = unchainer.getBadDependencies().size() > 0;
-    showDepsCard(haveBadDeps);
-    if (haveBadDeps) {
-      fillBadDependenciesList(unchainer);
+    @Override
+    public void consume(BadDependencyItem item) {
+      synchronized (myPendingItems) {
+        myPendingItems.add(item);
+        if (myPendingItems.size() > 1) {
+          return;
+        }
+      }
+      myBadDepsUpdateAlarm.addRequest(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, BAD_DEPENDENCIES_UPDATE_DELAY);
     }
-    else {
-      fillGoodDependenciesList(unchainer);
+
+    /**
+     * Called when the analysis is restarted: the items shown so far are removed with the next flush.
+     */
+    public void restart() {
+      synchronized (myPendingItems) {
+        myPendingItems.clear();
+        myRestarted = true;
+      }
+      myBadDepsUpdateAlarm.addRequest(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, BAD_DEPENDENCIES_UPDATE_DELAY);
     }
+
+    public boolean isCurrent() {
+      return myBadDepsList.getModel() == myModel;
+    }
+
+    public void flush() {
+      List<BadDependencyItem> items;
+      boolean restarted;
+      synchronized (myPendingItems) {
+        items = new ArrayList<BadDependencyItem>(myPendingItems);
+        myPendingItems.clear();
+        restarted = myRestarted;
+        myRestarted = false;
+      }
+      if (!isCurrent()) {
+        return;
+      }
+      if (restarted) {
+        myModel.removeAll();
+      }
+      if (!items.isEmpty()) {
+        // the batch is sorted and merged into the sorted items shown so far, so a flush is linear in the list size
+        Object selectedItem = myBadDepsList.getSelectedValue();
+        myModel.replaceAll(mergeSorted(myModel.getItems(), items));
+        if (selectedItem != null) {
+          myBadDepsList.setSelectedValue(selectedItem, false);
+        }
+      }
+      if (myBadDepsList.getSelectedIndex() < 0 && myModel.getSize() > 0) {
+        myBadDepsList.setSelectedIndex(0);
+      }
+    }
+
+    private List<BadDependencyItem> mergeSorted(List<BadDependencyItem> shown, List<BadDependencyItem> batch) {
+      Comparator<BadDependencyItem> comparator = new Comparator<BadDependencyItem>() {
+        @Override
+        public int compare(BadDependencyItem item1, BadDependencyItem item2) {
+          return item1.toString().compareTo(item2.toString());
+        }
+      };
+      Collections.sort(batch, comparator);
+      List<BadDependencyItem> result = new ArrayList<BadDependencyItem>(shown.size() + batch.size());
+      int i = 0;
+      int j = 0;
+      while (i < shown.size() || j < batch.size()) {
+        // items with equal text are kept in arrival order
+        if (j == batch.size() || i < shown.size() && comparator.compare(shown.get(i), batch.get(j)) <= 0) {
+          result.add(shown.get(i++));
+        }
+        else {
+          result.add(batch.get(j++));
+        }
+      }
+      return result;
+    }
+  }
+
+  private UnchainRules createRules() {
+    return UnchainConfiguration.getInstance(myProject).createRules(mySessionUnwantedDependencies, mySessionForcedMerges);
+  }
+
+  private static void resetPeakHeapUsage() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  private static long getPeakHeapUsage() {
+    long result = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        result += pool.getPeakUsage().getUsed();
+      }
+    }
+    return result;
+  }
+
+  private static long getUsedHeap() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long toMegabytes(long bytes) {
+    return bytes / (1024 * 1024);
   }
 
   private void showDepsCard(boolean bad) {
@@ -279,19 +646,34 @@ public class UnchainPanel extends JPanel {
     }
   }
 
-  private void fillGoodDependenciesList(Unchainer unchainer) {
-    myGoodDepsList.setModel(new CollectionListModel<String>(unchainer.getGoodDependencies()));
+  private PsiClass getSelectedClass() {
+    List<PsiClass> classes = getSelectedClasses();
+    return classes != null ? classes.get(0) : null;
   }
 
-  private void fillBadDependenciesList(Unchainer unchainer) {
-    myBadDepsList.setModel(new CollectionListModel<BadDependencyItem>(unchainer.getBadDependencies()));
-    if (myBadDepsList.getItemsCount() > 0) {
-      myBadDepsList.setSelectedIndex(0);
+  /**
+   * Resolves the comma-separated class and package names in the class name field. A package stands for all classes
+   * of the package in the project. Returns null if any of the names can't be resolved.
+   */
+  private List<PsiClass> getSelectedClasses() {
+    JavaPsiFacade facade = JavaPsiFacade.getInstance(myProject);
+    GlobalSearchScope scope = ProjectScope.getProjectScope(myProject);
+    Set<PsiClass> result = new LinkedHashSet<PsiClass>();
+    for (String name : StringUtil.split(myClassNameField.getText(), ",")) {
+      name = name.trim();
+      PsiClass aClass = facade.findClass(name, scope);
+      if (aClass != null) {
+        result.add(aClass);
+        continue;
+      }
+      PsiPackage psiPackage = name.length() > 0 ? facade.findPackage(name) : null;
+      PsiClass[] classes = psiPackage != null ? psiPackage.getClasses(scope) : PsiClass.EMPTY_ARRAY;
+      if (classes.length == 0) {
+        return null;
+      }
+      result.addAll(Arrays.asList(classes));
     }
-  }
-
-  private PsiClass getSelectedClass() {
-    return JavaPsiFacade.getInstance(myProject).findClass(myClassNameField.getText(), ProjectScope.getProjectScope(myProject));
+    return result.isEmpty() ? null : new ArrayList<PsiClass>(result);
   }
 
   private List<String> mergeMembers(List<String> qNames, String classToMergeQName) {
@@ -310,29 +692,71 @@ public class UnchainPanel extends JPanel {
   }
 
   private void moveClasses() {
+    int brokenUsages = myInboundUsagesList.getItemsCount();
+    if (brokenUsages > 0 &&
+        Messages.showYesNoDialog(myProject, brokenUsages + " usages of the moved classes would no longer compile. Move anyway?",
+                                 "Move Classes", Messages.getWarningIcon()) != Messages.YES) {
+      return;
+    }
     Module selectedItem = (Module) myTargetModuleComboBox.getSelectedItem();
     CollectionListModel<String> model = (CollectionListModel<String>) myGoodDepsList.getModel();
-    final UnchainMover mover = new UnchainMover(selectedItem, model.getItems());
-    final Ref<Boolean> failed = Ref.create(false);
-    new WriteCommandAction.Simple(myProject, "Moving classes to target module") {
-     @Override
-      protected void run() throws Throwable {
-        try {
-          mover.run();
+    moveClasses(selectedItem, model.getItems());
+  }
+
+  /**
+   * Searches for the usages and conflicts of the classes in the background and moves them on the EDT. If the usages
+   * have been invalidated in the meantime, the search is run again for the classes which haven't been moved yet, and
+   * their conflicts are shown again.
+   */
+  private void moveClasses(final Module targetModule, final List<String> qNames) {
+    final UnchainMover mover = new UnchainMover(targetModule, qNames, myQNameIndex);
+    try {
+      mover.prepare();
+    }
+    catch (UnsupportedOperationException e) {
+      Messages.showErrorDialog(myProject, e.getMessage(), "Move Failed");
+      return;
+    }
+
+    new Task.Backgroundable(myProject, "Searching for Usages of Moved Classes", true) {
+      @Override
+      public void run(ProgressIndicator indicator) {
+        mover.findUsages(indicator);
+      }
+
+      @Override
+      public void onSuccess() {
+        if (!mover.isUpToDate()) {
+          moveClasses(targetModule, qNames);
+          return;
         }
-        catch (UnsupportedOperationException e) {
-          Messages.showErrorDialog(myProject, e.getMessage(), "Move Failed");
-          failed.set(true);
+        MultiMap<PsiElement, String> conflicts = mover.getConflicts();
+        if (!conflicts.isEmpty()) {
+          ConflictsDialog dialog = new ConflictsDialog(myProject, conflicts);
+          dialog.show();
+          if (!dialog.isOK()) {
+            return;
+          }
+        }
+        final Ref<List<String>> remaining = Ref.create();
+        CommandProcessor.getInstance().executeCommand(myProject, new Runnable() {
+          @Override
+          public void run() {
+            remaining.set(mover.performMove());
+          }
+        }, "Moving classes to target module", null);
+        if (!remaining.get().isEmpty()) {
+          moveClasses(targetModule, remaining.get());
+          return;
         }
-      }
-    }.execute();
 
-    if (!failed.get()) {
-      myClassNameField.setText("");
-      clearList(myBadDepsList);
-      clearList(myCallChainList);
-      showDepsCard(true);
-    }
+        myClassNameField.setText("");
+        clearList(myBadDepsList);
+        clearList(myCallChainList);
+        clearList(myInboundUsagesList);
+        showDepsCard(true);
+      }
+    }.queue();
   }
 
   private void clearList(JBList list) {
@@ -352,7 +776,7 @@ public class UnchainPanel extends JPanel {
       CollectionListModel<String> model = (CollectionListModel<String>) myGoodDepsList.getModel();
       String selectedMemberQName = (String) myGoodDepsList.getSelectedValue();
       String selectedMemberClassName = PsiQNames.extractClassName(selectedMemberQName);
-      myForcedMerges.add(selectedMemberClassName);
+      mySessionForcedMerges.add(selectedMemberClassName);
       model.replaceAll(mergeMembers(model.getItems(), selectedMemberClassName));
       runUnchainer();
     }
@@ -365,18 +789,15 @@ public class UnchainPanel extends JPanel {
 
   private class MarkUnwantedAction extends AnAction {
     private MarkUnwantedAction() {
-      super("Mark Unwanted", "Mark selected class as an unwanted dependency", AllIcons.Actions.Menu_cut);
+      super("Mark Unwanted", "Mark selected class as an unwanted dependency until the project is closed",
+            AllIcons.Actions.Menu_cut);
     }
 
     @Override
     public void actionPerformed(AnActionEvent e) {
-      myUnwantedDeps.add(PsiQNames.extractClassName((String) myCallChainList.getSelectedValue()));
-      int selIndex = myBadDepsList.getSelectedIndex();
-      runUnchainer();
-      int size = myBadDepsList.getModel().getSize();
-      if (size > 0 && myBadDepsVisible) {
-        myBadDepsList.setSelectedIndex(selIndex >= size ? size - 1 : selIndex);
-      }
+      String className = PsiQNames.extractClassName((String) myCallChainList.getSelectedValue());
+      mySessionUnwantedDependencies.add(className);
+      runUnchainer(myBadDepsList.getSelectedIndex());
     }
 
     @Override
@@ -384,4 +805,286 @@ public class UnchainPanel extends JPanel {
       e.getPresentation().setEnabled(myBadDepsVisible && myCallChainList.getSelectedValue() != null);
     }
   }
+
+  private class ExportGraphAction extends AnAction {
+    private ExportGraphAction() {
+      super("Export Graph", "Analyze the selected classes and export the dependency graph to a DOT, GraphML or binary file",
+            AllIcons.Actions.Export);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      List<PsiClass> classes = getSelectedClasses();
+      Module module = (Module) myTargetModuleComboBox.getSelectedItem();
+      if (classes == null || module == null || !checkSameModule(classes)) {
+        return;
+      }
+      FileSaverDescriptor descriptor = new FileSaverDescriptor("Export Dependency Graph",
+                                                               "Choose the file to export the dependency graph to",
+                                                               "graphml", "dot", "bin");
+      VirtualFileWrapper wrapper = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, myProject)
+        .save(null, classes.get(0).getName() + ".graphml");
+      if (wrapper == null) {
+        return;
+      }
+      GraphExporter exporter;
+      try {
+        exporter = GraphExporter.create(wrapper.getFile());
+      }
+      catch (IOException ex) {
+        Messages.showErrorDialog(myProject, ex.getMessage(), "Export Failed");
+        return;
+      }
+      runUnchainer(classes, module, 0, exporter);
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      e.getPresentation().setEnabled(myTargetModuleComboBox.getSelectedItem() != null);
+    }
+  }
+
+  private class EditRulesAction extends AnAction {
+    private EditRulesAction() {
+      super("Edit Rules", "Edit unwanted dependencies and forced merges", AllIcons.Actions.Edit);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      UnchainConfiguration configuration = UnchainConfiguration.getInstance(myProject);
+      String text = Messages.showMultilineInputDialog(myProject,
+          "Unwanted dependencies, one per line: class names, 'package.*', 'package.**' or 'module:name'.\n" +
+          "Prefix classes which are always moved as a whole with 'merge:'.\n" +
+          "The rules added by Merge and Mark Unwanted are listed last; they are saved with the project on OK.",
+          "Unchain Rules", configuration.getRulesText() +
+                           UnchainConfiguration.getRulesText(mySessionUnwantedDependencies, mySessionForcedMerges),
+          null, null);
+      if (text != null) {
+        configuration.setRulesText(text);
+        mySessionUnwantedDependencies.clear();
+        mySessionForcedMerges.clear();
+        runUnchainer(Math.max(myBadDepsList.getSelectedIndex(), 0));
+      }
+    }
+  }
+
+  private class ShowCallChainsAction extends AnAction {
+    private static final int MAX_CALL_CHAINS = 50;
+
+    private ShowCallChainsAction() {
+      super("Show All Call Chains", "Show the shortest call chains leading to the selected bad dependency",
+            AllIcons.Hierarchy.Callee);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      final int index = myBadDepsList.getSelectedIndex();
+      BadDependencyItem selectedItem = (BadDependencyItem) myBadDepsList.getSelectedValue();
+      if (selectedItem == null || myCallGraph == null) {
+        return;
+      }
+      List<BadDependencyItem> chains = myCallGraph.getCallChains(selectedItem, MAX_CALL_CHAINS);
+      BaseListPopupStep<BadDependencyItem> step = new BaseListPopupStep<BadDependencyItem>("Call Chains to " + selectedItem, chains) {
+        @Override
+        public String getTextFor(BadDependencyItem value) {
+          return StringUtil.join(value.getCallChain(), " -> ");
+        }
+
+        @Override
+        public boolean isSpeedSearchEnabled() {
+          return true;
+        }
+
+        @Override
+        public PopupStep onChosen(BadDependencyItem selectedValue, boolean finalChoice) {
+          ((CollectionListModel<BadDependencyItem>) myBadDepsList.getModel()).setElementAt(selectedValue, index);
+          myCallChainList.setModel(new CollectionListModel<String>(selectedValue.getCallChain()));
+          return FINAL_CHOICE;
+        }
+      };
+      JBPopupFactory.getInstance().createListPopup(step).showInCenterOf(UnchainPanel.this);
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      e.getPresentation().setEnabled(myBadDepsVisible && myCallGraph != null && myBadDepsList.getSelectedValue() != null);
+    }
+  }
+
+  private class AnalyzeModuleAction extends AnAction {
+    private AnalyzeModuleAction() {
+      super("Analyze Module", "Check which classes of the module of the selected class can be moved to target module",
+            AllIcons.Nodes.Module);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      PsiClass psiClass = getSelectedClass();
+      final Module targetModule = (Module) myTargetModuleComboBox.getSelectedItem();
+      final Module sourceModule = psiClass != null ? ModuleUtil.findModuleForPsiElement(psiClass) : null;
+      if (sourceModule == null || targetModule == null) {
+        return;
+      }
+      UnchainRules rules = createRules();
+      final ModuleAnalyzer analyzer = new ModuleAnalyzer(sourceModule, targetModule, rules);
+      ReferenceGraph referenceGraph = getReferenceGraph();
+      if (referenceGraph != null) {
+        analyzer.setReferenceGraph(referenceGraph);
+      }
+
+      // the analyzer takes short read actions which give way to write actions, so it doesn't block the UI
+      new Task.Backgroundable(myProject, "Analyzing Module " + sourceModule.getName(), true) {
+        private List<MovabilityReport> myReports;
+
+        @Override
+        public void run(ProgressIndicator indicator) {
+          indicator.setIndeterminate(true);
+          myReports = analyzer.run();
+        }
+
+        @Override
+        public void onSuccess() {
+          if (myReports != null) {
+            showModuleReport(myReports, targetModule);
+          }
+        }
+      }.queue();
+    }
+
+    private void showModuleReport(List<MovabilityReport> reports, Module targetModule) {
+      showReportPopup(new ReportPopupStep<MovabilityReport>("Classes Movable to " + targetModule.getName(), reports) {
+        @Override
+        protected String getName(MovabilityReport report) {
+          return report.getClassName();
+        }
+
+        @Override
+        protected List<String> getBadDependencies(MovabilityReport report) {
+          return report.getBadDependencies();
+        }
+
+        @Override
+        protected void choose(MovabilityReport report) {
+          myClassNameField.setText(report.getClassName());
+        }
+      });
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      e.getPresentation().setEnabled(myTargetModuleComboBox.getSelectedItem() != null);
+    }
+  }
+
+  private class RankTargetModulesAction extends AnAction {
+    private RankTargetModulesAction() {
+      super("Rank Target Modules", "Check to which modules the selected classes can be moved", AllIcons.Nodes.ModuleGroup);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      List<PsiClass> classes = getSelectedClasses();
+      if (classes == null || !checkSameModule(classes)) {
+        return;
+      }
+      UnchainRules rules = createRules();
+      List<Module> candidates = Arrays.asList(ModuleManager.getInstance(myProject).getModules());
+      final TargetModuleAnalyzer analyzer = new TargetModuleAnalyzer(classes, candidates, rules);
+      ReferenceGraph referenceGraph = getReferenceGraph();
+      if (referenceGraph != null) {
+        analyzer.setReferenceGraph(referenceGraph);
+      }
+
+      new Task.Backgroundable(myProject, "Ranking Target Modules", true) {
+        private List<TargetModuleReport> myReports;
+
+        @Override
+        public void run(ProgressIndicator indicator) {
+          indicator.setIndeterminate(true);
+          myReports = analyzer.run();
+        }
+
+        @Override
+        public void onSuccess() {
+          if (myReports != null) {
+            showTargetModuleReport(myReports);
+          }
+        }
+      }.queue();
+    }
+
+    private void showTargetModuleReport(List<TargetModuleReport> reports) {
+      showReportPopup(new ReportPopupStep<TargetModuleReport>("Target Modules", reports) {
+        @Override
+        protected String getName(TargetModuleReport report) {
+          return report.getModuleName();
+        }
+
+        @Override
+        protected List<String> getBadDependencies(TargetModuleReport report) {
+          return report.getBadDependencies();
+        }
+
+        @Override
+        protected void choose(TargetModuleReport report) {
+          myTargetModuleComboBox.setSelectedItem(report.getModule());
+        }
+      });
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      e.getPresentation().setEnabled(myClassNameField.getText().trim().length() > 0);
+    }
+  }
+
+  private void showReportPopup(ReportPopupStep<?> step) {
+    JBPopupFactory.getInstance().createListPopup(step).showInCenterOf(this);
+  }
+
+  /**
+   * Lists the reports of a module analysis or a target module ranking, and runs the analysis for the chosen report.
+   */
+  private abstract class ReportPopupStep<T> extends BaseListPopupStep<T> {
+    private ReportPopupStep(String title, List<T> reports) {
+      super(title, reports);
+    }
+
+    protected abstract String getName(T report);
+
+    protected abstract List<String> getBadDependencies(T report);
+
+    /**
+     * Updates the analysis settings for the chosen report before the analysis is run.
+     */
+    protected abstract void choose(T report);
+
+    @Override
+    public String getTextFor(T value) {
+      int badDependencyCount = getBadDependencies(value).size();
+      return badDependencyCount == 0 ? getName(value) : getName(value) + " (" + badDependencyCount + " bad dependencies)";
+    }
+
+    @Override
+    public Icon getIconFor(T value) {
+      return getBadDependencies(value).isEmpty() ? AllIcons.Actions.Checked : AllIcons.General.Error;
+    }
+
+    @Override
+    public boolean isSpeedSearchEnabled() {
+      return true;
+    }
+
+    @Override
+    public PopupStep onChosen(final T selectedValue, boolean finalChoice) {
+      ApplicationManager.getApplication().invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          choose(selectedValue);
+          runUnchainer();
+        }
+      });
+      return FINAL_CHOICE;
+    }
+  }
 }